@@ -0,0 +1,146 @@
+package edu.umass.cs.mallet.users.kan.topics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** A Walker alias table over topics, built once from a set of weights
+ *   and then sampled in constant time. The weights are kept, so that
+ *   the Metropolis-Hastings sampler can evaluate the (stale) proposal
+ *   probability of any topic.
+ *
+ *   The table is either dense (entry k is topic k) or lists its topics,
+ *   with a hash from topic to entry so that weight() does not scan them.
+ */
+
+public class AliasTable {
+
+	int size;
+	int[] topics;        // the topic of each entry, or null if entry k is topic k
+	double[] weights;    // the weight of each entry
+	double mass;         // the sum of the weights
+
+	double[] probabilities = new double[0];
+	int[] aliases = new int[0];
+
+	// open addressing with linear probing, at most half full: 
+	//  the entry of a topic plus 1, or 0 for an empty slot
+	int[] slots = new int[0];
+	int slotMask;
+
+	/**
+	 *  Builds the table from the first size entries of weights (and topics,
+	 *   unless it is null). The arrays become part of the table.
+	 *
+	 *  @param work  scratch space of at least size ints, for the entries
+	 *                whose probability is below (from the front) and 
+	 *                above (from the back) the average
+	 */
+	public void build (int[] topics, double[] weights, int size, int[] work) {
+		this.topics = topics;
+		this.weights = weights;
+		this.size = size;
+
+		if (probabilities.length < size) {
+			probabilities = new double[size];
+			aliases = new int[size];
+		}
+
+		mass = 0.0;
+		for (int i = 0; i < size; i++) {
+			mass += weights[i];
+		}
+
+		if (topics != null) {
+			int numSlots = Integer.highestOneBit(Math.max(1, size)) * 4;
+			if (slots.length < numSlots) {
+				slots = new int[numSlots];
+			}
+			else {
+				Arrays.fill(slots, 0, numSlots, 0);
+			}
+			slotMask = numSlots - 1;
+			for (int i = 0; i < size; i++) {
+				slots[slot(topics[i])] = i + 1;
+			}
+		}
+
+		// the small entries are stacked up from the front of work,
+		//  the large ones down from the back
+		int numSmall = 0;
+		int firstLarge = size;
+		for (int i = 0; i < size; i++) {
+			probabilities[i] = weights[i] * size / mass;
+			if (probabilities[i] < 1.0) {
+				work[numSmall++] = i;
+			}
+			else {
+				work[--firstLarge] = i;
+			}
+		}
+
+		while (numSmall > 0 && firstLarge < size) {
+			int less = work[--numSmall];
+			int more = work[firstLarge++];
+
+			aliases[less] = more;
+			probabilities[more] -= 1.0 - probabilities[less];
+
+			if (probabilities[more] < 1.0) {
+				work[numSmall++] = more;
+			}
+			else {
+				work[--firstLarge] = more;
+			}
+		}
+
+		// whatever is left over is 1 up to rounding
+		while (firstLarge < size) {
+			int more = work[firstLarge++];
+			probabilities[more] = 1.0;
+			aliases[more] = more;
+		}
+		while (numSmall > 0) {
+			int less = work[--numSmall];
+			probabilities[less] = 1.0;
+			aliases[less] = less;
+		}
+	}
+
+	/** @return a topic drawn in proportion to the weights */
+	public int sample (Random random) {
+		return sample(random.nextDouble());
+	}
+
+	/** 
+	 *  @param uniform  a uniform number in [0, 1), whose integer part (times 
+	 *                   the size) picks the entry and whose fraction decides
+	 *                   between the entry and its alias
+	 *  @return a topic drawn in proportion to the weights
+	 */
+	public int sample (double uniform) {
+		double scaled = uniform * size;
+		int i = Math.min((int) scaled, size - 1);   // a rescaled uniform may round up to 1
+		if (scaled - i >= probabilities[i]) {
+			i = aliases[i];
+		}
+		return topics == null ? i : topics[i];
+	}
+
+	/** @return the weight of a topic, 0 if it is not in the table */
+	public double weight (int topic) {
+		if (topics == null) {
+			return weights[topic];
+		}
+		int entry = slots[slot(topic)];
+		return entry == 0 ? 0.0 : weights[entry - 1];
+	}
+
+	/** @return the slot of the topic, or the empty slot where it would go */
+	private int slot (int topic) {
+		int slot = (topic * 0x9E3779B9 >>> 16) & slotMask;
+		while (slots[slot] != 0 && topics[slots[slot] - 1] != topic) {
+			slot = (slot + 1) & slotMask;
+		}
+		return slot;
+	}
+}
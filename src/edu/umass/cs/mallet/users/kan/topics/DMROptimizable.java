@@ -10,6 +10,13 @@ package edu.umass.cs.mallet.users.kan.topics;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import cc.mallet.classify.MaxEnt;
@@ -39,7 +46,17 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
     private static Logger progressLogger = MalletLogger.getLogger(DMROptimizable.class.getName()+"-pl");
 
     MaxEnt                classifier;
-    InstanceList          trainingList;
+    InstanceList          trainingList;     // null if the data was given as arrays
+    Alphabet              dataAlphabet;
+
+    // The training data. The instances are in groups with the same 
+    //  features, whose scores are computed once per group.
+    int[][]               groupFeatureIndices;  // the stored features of each group
+    double[][]            groupFeatureValues;
+    int[]                 groupStarts;      // group g has the instances from groupStarts[g] up to groupStarts[g+1]
+    int[]                 countStarts;      // the counts of instance i are from countStarts[i] up to countStarts[i+1]
+    int[]                 countLabels;
+    int[]                 counts;
     
     int numGetValueCalls = 0;
     int numGetValueGradientCalls = 0;
@@ -90,6 +107,13 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
   
     Cache[]               cache;
     
+    // The instances are split into one contiguous range per thread,
+    //  and each thread adds up its own value and gradient.
+    int                   numThreads = 1;
+    ExecutorService       executor = null;
+    double[][]            threadGradients = null;   // for the threads after the first
+    int[]                 threadGroupStarts = null; // the first group of each thread
+    
     
     public DMROptimizable () {}
 
@@ -101,6 +125,7 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
 
         this.trainingList = instances;
         Alphabet alphabet = instances.getDataAlphabet();
+        this.dataAlphabet = alphabet;
         Alphabet labelAlphabet = instances.getTargetAlphabet();
 
         this.numLabels = labelAlphabet.size();
@@ -163,9 +188,93 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
 
         }
 
+        // Every instance is a group of its own. The instances without 
+        //  topic counts are kept, without counts, so that the instance 
+        //  indices of batchAssignments stay the same.
+
+        int numInstances = trainingList.size();
+        groupFeatureIndices = new int[numInstances][];
+        groupFeatureValues = new double[numInstances][];
+        groupStarts = new int[numInstances + 1];
+        countStarts = new int[numInstances + 1];
+
+        for (int instanceIndex = 0; instanceIndex < numInstances; instanceIndex++) {
+            Instance instance = trainingList.get(instanceIndex);
+            FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
+            FeatureVector features = (FeatureVector) instance.getData();
+
+            groupFeatureIndices[instanceIndex] = new int[features.numLocations()];
+            groupFeatureValues[instanceIndex] = new double[features.numLocations()];
+            for (int loc = 0; loc < features.numLocations(); loc++) {
+                groupFeatureIndices[instanceIndex][loc] = features.indexAtLocation(loc);
+                groupFeatureValues[instanceIndex][loc] = features.valueAtLocation(loc);
+            }
+
+            groupStarts[instanceIndex + 1] = instanceIndex + 1;
+            countStarts[instanceIndex + 1] = countStarts[instanceIndex] + 
+                (multinomialValues == null ? 0 : multinomialValues.numLocations());
+        }
+
+        countLabels = new int[countStarts[numInstances]];
+        counts = new int[countStarts[numInstances]];
+
+        for (int instanceIndex = 0; instanceIndex < numInstances; instanceIndex++) {
+            FeatureVector multinomialValues = (FeatureVector) trainingList.get(instanceIndex).getTarget();
+            if (multinomialValues == null) {
+                continue;
+            }
+            for (int loc = 0; loc < multinomialValues.numLocations(); loc++) {
+                countLabels[countStarts[instanceIndex] + loc] = multinomialValues.indexAtLocation(loc);
+                // the counts are really ints, stored as doubles
+                counts[countStarts[instanceIndex] + loc] = (int) Math.round(multinomialValues.valueAtLocation(loc));
+            }
+        }
+
         //TestMaximizable.testValueAndGradientCurrentParameters (this);
     }
 
+    /**
+     *  Uses the training data as it is, without building instances.
+     *   The instances are in groups with the same features, whose scores
+     *   are then computed once per group.
+     *
+     *  @param groupFeatureIndices  the stored features of each group
+     *  @param groupFeatureValues   and their values
+     *  @param groupStarts          group g has the instances from groupStarts[g]
+     *                               up to groupStarts[g+1]
+     *  @param countStarts          the topic counts of instance i are from 
+     *                               countStarts[i] up to countStarts[i+1]
+     *  @param countLabels          the label of each count
+     *  @param counts               the counts
+     *  @param initialClassifier    the parameters, whose alphabets are the 
+     *                               features and the labels
+     */
+    public DMROptimizable (int[][] groupFeatureIndices, double[][] groupFeatureValues, int[] groupStarts,
+                           int[] countStarts, int[] countLabels, int[] counts, MaxEnt initialClassifier) {
+
+        this.dataAlphabet = initialClassifier.getAlphabet();
+        this.numLabels = initialClassifier.getLabelAlphabet().size();
+        this.numFeatures = dataAlphabet.size() + 1; // add a spot for the intercept term
+
+        logger.info("num features: " + numFeatures + " numLabels: " + numLabels);
+
+        this.classifier = initialClassifier;
+        this.parameters = classifier.getParameters();
+        this.defaultFeatureIndex = classifier.getDefaultFeatureIndex();
+
+        this.numBatches = 1;
+        this.cache      = new Cache[] { new Cache(numLabels, numFeatures) };
+
+        this.groupFeatureIndices = groupFeatureIndices;
+        this.groupFeatureValues = groupFeatureValues;
+        this.groupStarts = groupStarts;
+        this.countStarts = countStarts;
+        this.countLabels = countLabels;
+        this.counts = counts;
+
+		formatter = new DecimalFormat("0.###E0");
+    }
+
 	/** Set the variance for the default features (aka intercept terms), generally 
 	 *   larger than the variance for the regular features.
 	 */
@@ -180,6 +289,25 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
 		this.gaussianPriorVariance = sigmaSquared;
 	}
 
+	/** Set the number of threads the value and gradient are computed with. 
+	 *   The threads are started on the first evaluation and stay up until 
+	 *   shutdown() is called.
+	 */
+	public void setNumThreads(int numThreads) {
+		shutdown();
+		this.numThreads = Math.max(1, numThreads);
+		this.threadGradients = null;
+		this.threadGroupStarts = null;
+	}
+
+	/** Stop the threads, if any were started. */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
     public MaxEnt getClassifier () { return classifier; }
         
     public double getParameter (int index) {
@@ -236,89 +364,9 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
         }
         
         numGetValueCalls++;
-		c.cachedValue = 0;
 
         // Incorporate likelihood of data
-        double[] scores = new double[ trainingList.getTargetAlphabet().size() ];   // i.e. num topics
-        double   value  = 0.0;
-
-		int instanceIndex = 0;
-            
-		for (Instance instance: trainingList) {
-		    
-			FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
-            if (multinomialValues == null) {
-                ++instanceIndex;
-                continue; 
-            }
-            
-            if ((batchAssignments != null)                              // null means single batch, so no skipping
-                && (batchIndex != batchAssignments[instanceIndex])) {   // instance is not in current batch
-                    ++instanceIndex;
-                    continue;               // skip if not in current batch
-            }
-    
-            //System.out.println("L Now "+inputAlphabet.size()+" regular features.");
-            
-            // Get the predicted probability of each class
-            //   under the current model parameters
-            this.classifier.getUnnormalizedClassificationScores(instance, scores);
-    
-            double sumScores = exponentiateScores(scores);
-    
-			// This is really an int, but since FeatureVectors are defined as doubles, 
-			//  avoid casting.
-			double totalLength = 0;
-
-			for (int i = 0; i < multinomialValues.numLocations(); i++) {
-				int label = multinomialValues.indexAtLocation(i);
-				double count = multinomialValues.valueAtLocation(i);
-
-                if (scores[label] == 0.0)
-                {
-                    logger.warning("topic " + label + " has a zero score:");
-                    
-                    printFeatures(System.out, label, instance);
-                }
-                
-                value += (Dirichlet.logGammaStirling(scores[label] + count) -
-                          Dirichlet.logGammaStirling(scores[label]));
-                totalLength += count;
-            }
-    
-            value -= (Dirichlet.logGammaStirling(sumScores + totalLength) -
-                      Dirichlet.logGammaStirling(sumScores));
-    
-            // Error Checking:
-            
-            if (Double.isNaN(value)) {
-				logger.fine (this.getClass().getSimpleName() + ": Instance " + instance.getName() +
-                             " has NaN value.");
-    
-				for (int label: multinomialValues.getIndices()) {
-                    logger.fine("\tlabel: " + label 
-                                    + "\tlog(scores) = " + Math.log(scores[label]) 
-                                    + "\tscores = " + scores[label]);
-                }
-            }
-    
-            if (Double.isInfinite(value)) {
-				logger.warning ("Instance " + instance.getSource() + 
-                        " has infinite value; skipping value and gradient");
-                
-                logInfiniteValueDetails(multinomialValues, scores, sumScores);
-                
-                c.cachedValue -= value;
-                c.cachedValueStale = false;
-                return -value;
-            }
-    
-            //System.out.println(value);
-
-			c.cachedValue += value;
-                
-			instanceIndex++;
-        }
+        c.cachedValue = getInstancesValue(batchIndex, batchAssignments);
 
         // Incorporate prior on parameters
 
@@ -347,18 +395,239 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
     }
 
     /**
-         @param multinomialValues
+     *  @return the log likelihood of the topic counts of the instances 
+     *           in the batch, summed over the threads in thread order
+     **/
+    private double getInstancesValue(final int batchIndex, final int[] batchAssignments) {
+
+        if (numThreads == 1) {
+            return getInstancesValue(0, numGroups(), batchIndex, batchAssignments);
+        }
+
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(numThreads);
+
+        for (int thread = 0; thread < numThreads; thread++) {
+            final int fromGroup = groupRangeStart(thread);
+            final int toGroup = groupRangeStart(thread + 1);
+
+            tasks.add(new Callable<Double>() {
+                public Double call() {
+                    return getInstancesValue(fromGroup, toGroup, batchIndex, batchAssignments);
+                }
+            });
+        }
+
+        double value = 0.0;
+        for (Double threadValue : invokeAll(tasks)) {
+            value += threadValue;
+        }
+        return value;
+    }
+
+    /**
+     *  @return the log likelihood of the topic counts of the instances 
+     *           of the groups from fromGroup up to (not including) toGroup
+     *           that are in the batch
+     **/
+    private double getInstancesValue(int fromGroup, int toGroup, int batchIndex, int[] batchAssignments) {
+
+        double[] scores = new double[numLabels];
+        double   rangeValue = 0.0;
+
+        for (int group = fromGroup; group < toGroup; group++) {
+
+            // Get the predicted probability of each class
+            //   under the current model parameters, which are the
+            //   same for all the instances of the group
+            double sumScores = getGroupScores(group, scores);
+            double logGammaSumScores = Dirichlet.logGammaStirling(sumScores);
+
+            for (int instanceIndex = groupStarts[group]; instanceIndex < groupStarts[group + 1]; instanceIndex++) {
+
+                if ((batchAssignments != null)                              // null means single batch, so no skipping
+                    && (batchIndex != batchAssignments[instanceIndex])) {   // instance is not in current batch
+                        continue;               // skip if not in current batch
+                }
+
+                double value = getInstanceValue(instanceIndex, scores, sumScores, logGammaSumScores);
+    
+                // Error Checking:
+
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    for (int i = countStarts[instanceIndex]; i < countStarts[instanceIndex + 1]; i++) {
+                        int label = countLabels[i];
+
+                        if (scores[label] == 0.0)
+                        {
+                            logger.warning("topic " + label + " has a zero score:");
+
+                            printFeatures(System.out, label, group);
+                        }
+                    }
+                }
+            
+                if (Double.isNaN(value)) {
+                    logger.fine (this.getClass().getSimpleName() + ": Instance " + instanceIndex +
+                                 " has NaN value.");
+    
+                    for (int i = countStarts[instanceIndex]; i < countStarts[instanceIndex + 1]; i++) {
+                        int label = countLabels[i];
+                        logger.fine("\tlabel: " + label 
+                                        + "\tlog(scores) = " + Math.log(scores[label]) 
+                                        + "\tscores = " + scores[label]);
+                    }
+                }
+    
+                if (Double.isInfinite(value)) {
+                    logger.warning ("Instance " + instanceIndex + 
+                            " has infinite value; skipping value and gradient");
+                
+                    logInfiniteValueDetails(instanceIndex, scores, sumScores);
+                    continue;
+                }
+    
+                rangeValue += value;
+            }
+        }
+
+        return rangeValue;
+    }
+
+    /**
+     *  @return the log likelihood of the topic counts of an instance, given 
+     *           the scores of its group
+     **/
+    private double getInstanceValue(int instanceIndex, double[] scores, double sumScores, double logGammaSumScores) {
+
+        int totalLength = 0;
+        double value = 0.0;
+
+        for (int i = countStarts[instanceIndex]; i < countStarts[instanceIndex + 1]; i++) {
+            int label = countLabels[i];
+            int count = counts[i];
+
+            value += (Dirichlet.logGammaStirling(scores[label] + count) -
+                      Dirichlet.logGammaStirling(scores[label]));
+            totalLength += count;
+        }
+
+        return value - (Dirichlet.logGammaStirling(sumScores + totalLength) - logGammaSumScores);
+    }
+
+    /**
+     *  Sets the exponentiated scores of the labels for the features of a
+     *   group, as MaxEnt.getUnnormalizedClassificationScores does for an 
+     *   instance.
+     *  @return the sum of the scores
+     **/
+    private double getGroupScores(int group, double[] scores) {
+
+        int[] indices = groupFeatureIndices[group];
+        double[] values = groupFeatureValues[group];
+
+        for (int label = 0; label < numLabels; label++) {
+            int offset = label * numFeatures;
+            double score = parameters[offset + defaultFeatureIndex];
+            for (int loc = 0; loc < indices.length; loc++) {
+                if (indices[loc] < defaultFeatureIndex) {
+                    score += parameters[offset + indices[loc]] * values[loc];
+                }
+            }
+            scores[label] = score;
+        }
+
+        return exponentiateScores(scores);
+    }
+
+    private int numGroups() {
+        return groupStarts.length - 1;
+    }
+
+    /** @return the first group of the range of a thread, or the number
+     *           of groups for thread numThreads */
+    private int groupRangeStart(int thread) {
+        if (threadGroupStarts == null) {
+            splitGroups();
+        }
+        return threadGroupStarts[thread];
+    }
+
+    /**
+     *  Splits the groups into numThreads ranges of about the same cost: 
+     *   the topic counts of its instances and, per label, the features of
+     *   the group.
+     */
+    private void splitGroups() {
+
+        long totalCost = 0;
+        for (int group = 0; group < numGroups(); group++) {
+            totalCost += groupCost(group);
+        }
+
+        threadGroupStarts = new int[numThreads + 1];
+
+        int thread = 1;
+        long cost = 0;
+        for (int group = 0; group < numGroups() && thread < numThreads; group++) {
+            cost += groupCost(group);
+            while (thread < numThreads && cost * numThreads >= totalCost * thread) {
+                threadGroupStarts[thread++] = group + 1;
+            }
+        }
+        while (thread <= numThreads) {
+            threadGroupStarts[thread++] = numGroups();
+        }
+    }
+
+    private long groupCost(int group) {
+        return (countStarts[groupStarts[group + 1]] - countStarts[groupStarts[group]]) +
+               (groupStarts[group + 1] - groupStarts[group]) +
+               (long) numLabels * (groupFeatureIndices[group].length + 2);
+    }
+
+    /**
+     *  Runs the tasks on the threads and waits for all of them.
+     *  @return the results, in the order of the tasks
+     *  @throws IllegalStateException if a task failed (with its exception
+     *           as the cause) or the wait was interrupted
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads);
+        }
+
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            List<Future<T>> futures = executor.invokeAll(tasks);
+
+            for (int thread = 0; thread < futures.size(); thread++) {
+                try {
+                    results.add(futures.get(thread).get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Regression thread " + thread + " failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during the regression", e);
+        }
+        return results;
+    }
+
+    /**
+         @param instanceIndex
          @param scores
          @param sumScores
      **/
-    private void logInfiniteValueDetails(FeatureVector multinomialValues, double[] scores, double sumScores)
+    private void logInfiniteValueDetails(int instanceIndex, double[] scores, double sumScores)
     {
         double total = 0.0;
    
-        for (int i = 0; i < multinomialValues.numLocations(); i++) {
+        for (int i = countStarts[instanceIndex]; i < countStarts[instanceIndex + 1]; i++) {
             
-            int label = multinomialValues.indexAtLocation(i);
-            double count = multinomialValues.valueAtLocation(i);
+            int label = countLabels[i];
+            double count = counts[i];
             
             if (count > 0.0)
             {
@@ -400,9 +669,10 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
         return sumScores;
     }
 
-    public void printFeatures(PrintStream pw, int label, Instance instance)
+    public void printFeatures(PrintStream pw, int label, int group)
     {
-        FeatureVector fv    = (FeatureVector) instance.getData();
+        int[] indices = groupFeatureIndices[group];
+        double[] values = groupFeatureValues[group];
          
         // default feature index (i.e. the intercept) 
         //  is the last one for each topic, so don't print that
@@ -410,97 +680,116 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
         pw.print("(default)\t");
         pw.println(parameters[label*numFeatures + defaultFeatureIndex]);
 
-        for (int i = 0; i < defaultFeatureIndex; i++)
+        for (int loc = 0; loc < indices.length; loc++)
         {
-            if (fv.value(i) > 0.0)
+            if (indices[loc] < defaultFeatureIndex && values[loc] > 0.0)
             {
-                pw.print(instance.getDataAlphabet().lookupObject(i));
+                pw.print(dataAlphabet.lookupObject(indices[loc]));
                 pw.print('\t');
-                pw.println(parameters[label*numFeatures + i]);
+                pw.println(parameters[label*numFeatures + indices[loc]]);
             }
         }
     }
 
-    public void getValueGradient(double[] buffer)
-    {
-        this.getBatchValueGradient(buffer, 0, null);
-    }
-    
-    public void getBatchValueGradient(double[] buffer, int batchIndex, int[] batchAssignments)
-    {
-        Cache c = this.cache[batchIndex];
+    /**
+     *  Sets gradient to the gradient of the log likelihood of the topic 
+     *   counts of the instances in the batch. Every thread after the first
+     *   adds up its instances in a buffer of its own, and the buffers are 
+     *   then added to gradient in thread order.
+     **/
+    private void addInstancesGradient(final double[] gradient, final int batchIndex, final int[] batchAssignments) {
 
-        logger.fine("getBatchValueGradient[" + batchIndex + "]");
+        assert(batchAssignments == null || batchAssignments.length == countStarts.length - 1);
 
-        MatrixOps.setAll (c.cachedGradient, 0.0);
+        MatrixOps.setAll (gradient, 0.0);
 
-        // Incorporate likelihood of data
-        double[] scores = new double[ trainingList.getTargetAlphabet().size() ];
-        //double[] diffs  = new double[numLabels];
+        if (numThreads == 1) {
+            addInstancesGradient(gradient, 0, numGroups(), batchIndex, batchAssignments);
+            return;
+        }
 
-		//int instanceIndex = 0;
-        
-        assert(batchAssignments.length == trainingList.size());
-        
-        int instanceIndex = 0;
-        
-		for (Instance instance: trainingList) {
+        if (threadGradients == null) {
+            threadGradients = new double[numThreads - 1][gradient.length];
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(numThreads);
+
+        for (int thread = 0; thread < numThreads; thread++) {
+            final int fromGroup = groupRangeStart(thread);
+            final int toGroup = groupRangeStart(thread + 1);
+            final double[] threadGradient = thread == 0 ? gradient : threadGradients[thread - 1];
+
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    if (threadGradient != gradient) {
+                        MatrixOps.setAll (threadGradient, 0.0);
+                    }
+                    addInstancesGradient(threadGradient, fromGroup, toGroup, batchIndex, batchAssignments);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+
+        for (double[] threadGradient : threadGradients) {
+            MatrixOps.plusEquals(gradient, threadGradient);
+        }
+    }
+
+    /**
+     *  Adds to gradient the gradient of the log likelihood of the topic 
+     *   counts of the instances of the groups from fromGroup up to (not 
+     *   including) toGroup that are in the batch.
+     **/
+    private void addInstancesGradient(double[] gradient, int fromGroup, int toGroup, int batchIndex, int[] batchAssignments) {
+
+        double[] scores = new double[numLabels];
+        // the gradient of the group wrt. (label, feature) is value(feature) * labelWeights[label]
+        double[] labelWeights = new double[numLabels];
+
+        for (int group = fromGroup; group < toGroup; group++) {
 
-			FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
- 
-            if (multinomialValues == null) {
-                ++instanceIndex;
-                continue; 
-            }
-            
-            if ((batchAssignments != null)                              // null means single batch, so no skipping
-                && (batchIndex != batchAssignments[instanceIndex])) {   // instance is not in current batch
-                    ++instanceIndex;
-                    continue;               // skip if not in current batch
-            }
-   
             // Get the predicted probability of each class
             //   under the current model parameters
-            this.classifier.getUnnormalizedClassificationScores(instance, scores);
-    
-            double sumScores = exponentiateScores(scores);
-    
-            FeatureVector features = (FeatureVector) instance.getData();
-    
-			double totalLength = 0;
-    
-			for (double count : multinomialValues.getValues()) {
-				totalLength += count;
-            }
-    
-            double digammaDifferenceForSums = 
-                Dirichlet.digamma(sumScores + totalLength) -
-                Dirichlet.digamma(sumScores);
-    
-            for (int loc = 0; loc < features.numLocations(); loc++) {
-                int index = features.indexAtLocation(loc);
-                double value = features.valueAtLocation(loc);
-                    
-                if (value == 0.0) { continue; }
+            double sumScores = getGroupScores(group, scores);
+            double digammaSumScores = Dirichlet.digamma(sumScores);
+            double logGammaSumScores = Dirichlet.logGammaStirling(sumScores);
 
-                // In a FeatureVector, there's no easy way to say "do you know
-                //   about this id?" so I've broken this into two for loops,
-                //  one for all labels, the other for just the non-zero ones.
+            // The instances of the group share its features, so their label
+            //  terms are added up first, and the features are visited once
+            //  per group. The term of the sums is the same for every label,
+            //  up to the factor scores[label].
 
-                for (int label=0; label<numLabels; label++) {
-                    c.cachedGradient[label * numFeatures + index] -=
-                        value * scores[label] * digammaDifferenceForSums;
+            double digammaDifferencesForSums = 0.0;
+            boolean inBatch = false;
+
+            MatrixOps.setAll (labelWeights, 0.0);
+
+            for (int instanceIndex = groupStarts[group]; instanceIndex < groupStarts[group + 1]; instanceIndex++) {
+
+                if ((batchAssignments != null)                              // null means single batch, so no skipping
+                    && (batchIndex != batchAssignments[instanceIndex])) {   // instance is not in current batch
+                        continue;               // skip if not in current batch
                 }
 
-                for (int labelLoc = 0; labelLoc <multinomialValues.numLocations(); labelLoc++) {
-                    int label = multinomialValues.indexAtLocation(labelLoc);
-                    double count = multinomialValues.valueAtLocation(labelLoc);
+                // getInstancesValue skips the instances with an infinite 
+                //  value, so they do not count for the gradient either
+                if (Double.isInfinite(getInstanceValue(instanceIndex, scores, sumScores, logGammaSumScores))) {
+                    continue;
+                }
+                inBatch = true;
+
+                int totalLength = 0;
+
+                for (int i = countStarts[instanceIndex]; i < countStarts[instanceIndex + 1]; i++) {
+                    int label = countLabels[i];
+                    int count = counts[i];
 
                     double diff = 0.0;
-                            
+
                     if (count < 20) {
-                        for (int i=0; i < count; i++) {
-                            diff += 1 / (scores[label] + i);
+                        for (int j=0; j < count; j++) {
+                            diff += 1 / (scores[label] + j);
                         }
                     }
                     else {
@@ -508,42 +797,60 @@ public class DMROptimizable implements Optimizable.ByBatchGradient, Optimizable.
                             Dirichlet.digamma(scores[label]);
                     }
 
-                    c.cachedGradient[label * numFeatures + index] +=
-                        value * scores[label] * diff;
-
+                    labelWeights[label] += scores[label] * diff;
+                    totalLength += count;
                 }
+
+                digammaDifferencesForSums += 
+                    Dirichlet.digamma(sumScores + totalLength) - digammaSumScores;
             }
-            // Now add the default feature
+
+            if (! inBatch) { continue; }
 
             for (int label=0; label<numLabels; label++) {
-                c.cachedGradient[label * numFeatures + defaultFeatureIndex] -=
-                    scores[label] * digammaDifferenceForSums;
+                labelWeights[label] -= scores[label] * digammaDifferencesForSums;
             }
 
+            // Only the stored, non-zero features contribute, so the cost
+            //  scales with the number of non-zeros of the (sparse) vector.
 
-            for(int labelLoc = 0; labelLoc <multinomialValues.numLocations(); labelLoc++) {
-                int label = multinomialValues.indexAtLocation(labelLoc);
-                double count = multinomialValues.valueAtLocation(labelLoc);
-                
-                double diff = 0.0;
+            int[] indices = groupFeatureIndices[group];
+            double[] values = groupFeatureValues[group];
 
-                if (count < 20) {
-                    for (int i=0; i < count; i++) {
-                        diff += 1 / (scores[label] + i);
-                    }
-                }
-                else {
-                    diff = Dirichlet.digamma(scores[label] + count) -
-                        Dirichlet.digamma(scores[label]);
+            for (int loc = 0; loc < indices.length; loc++) {
+                int index = indices[loc];
+                double value = values[loc];
+                    
+                if (value == 0.0 || index >= defaultFeatureIndex) { continue; }
+
+                for (int label=0; label<numLabels; label++) {
+                    gradient[label * numFeatures + index] +=
+                        value * labelWeights[label];
                 }
+            }
 
-                c.cachedGradient[label * numFeatures + defaultFeatureIndex] +=
-                    scores[label] * diff;
-                    
+            // Now add the default feature
 
+            for (int label=0; label<numLabels; label++) {
+                gradient[label * numFeatures + defaultFeatureIndex] +=
+                    labelWeights[label];
             }
-            ++instanceIndex;
         }
+    }
+
+    public void getValueGradient(double[] buffer)
+    {
+        this.getBatchValueGradient(buffer, 0, null);
+    }
+    
+    public void getBatchValueGradient(double[] buffer, int batchIndex, int[] batchAssignments)
+    {
+        Cache c = this.cache[batchIndex];
+
+        logger.fine("getBatchValueGradient[" + batchIndex + "]");
+
+        // Incorporate likelihood of data
+        addInstancesGradient(c.cachedGradient, batchIndex, batchAssignments);
 
         numGetValueGradientCalls++;
             
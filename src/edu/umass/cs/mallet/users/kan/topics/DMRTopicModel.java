@@ -15,6 +15,7 @@ import java.io.ObjectOutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.logging.Logger;
 
 import cc.mallet.classify.MaxEnt;
@@ -22,9 +23,7 @@ import cc.mallet.optimize.LimitedMemoryBFGS;
 import cc.mallet.optimize.OptimizationException;
 import cc.mallet.pipe.Noop;
 import cc.mallet.pipe.Pipe;
-import cc.mallet.topics.DMROptimizable;
 import cc.mallet.types.Alphabet;
-import cc.mallet.types.FeatureCounter;
 import cc.mallet.types.FeatureVector;
 import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
@@ -42,9 +41,32 @@ public class DMRTopicModel extends ParallelTopicModel {
     int defaultFeatureIndex;
     Pipe parameterPipe = null;
 
-    //	double[][] alphaCache;
-    //  double[] alphaSumCache;
-    // these don't seem to be used....
+    // The alphas of the documents only change when the regression is
+    //  trained, so they are cached in the TopicAssignments, for as many
+    //  distinct feature vectors as fit in this many doubles (the others
+    //  are recomputed)
+    long alphaCacheSize = 64L << 20;
+
+    // All the documents of one city and day have the same features, and
+    //  so the same alphas: the distinct feature vectors are numbered in
+    //  addInstances and their alphas are computed once per regression.
+    int[] docSignatures;                    // the feature vector of each document
+    ArrayList<Instance> signatureInstances; // the first document with each feature vector
+    double[][] signatureAlphas;             // the cached alphas of each feature vector
+    double[] signatureAlphaMax;             // and the largest of them
+
+    // The data of the regression, kept from one regression to the next:
+    //  the documents with features, grouped by feature vector, and their
+    //  topic counts, which are refilled before each regression.
+    int[][] signatureFeatureIndices;        // the stored features of each feature vector
+    double[][] signatureFeatureValues;
+    int[] regressionGroupStarts;            // the documents of feature vector s are from 
+    int[] regressionDocs;                   //  regressionGroupStarts[s] up to [s+1] in regressionDocs
+    int[] regressionCountStarts;            // the counts of the i-th of these documents are from
+    int[] regressionTopics;                 //  regressionCountStarts[i] up to [i+1]
+    int[] regressionCounts;
+    DocTopicCounts regressionDocTopicCounts;
+
     public DMRTopicModel(int numberOfTopics) {
         super(numberOfTopics);
         
@@ -62,27 +84,188 @@ public class DMRTopicModel extends ParallelTopicModel {
         numFeatures = data.get(0).instance.getTargetAlphabet().size() + 1;
         defaultFeatureIndex = numFeatures - 1;
 
-//		int numDocs = data.size(); // TODO consider beginning by sub-sampling?
+        findSignatures();
+    }
+
+    /**
+     *  Numbers the distinct feature vectors of the documents
+     */
+    private void findSignatures() {
+        HashMap<FeatureSignature, Integer> signatures = new HashMap<FeatureSignature, Integer>();
+
+        docSignatures = new int[data.size()];
+        signatureInstances = new ArrayList<Instance>();
+        signatureAlphas = null;
+
+        for (int doc = 0; doc < data.size(); doc++) {
+            Instance instance = data.get(doc).instance;
+            FeatureSignature signature = new FeatureSignature((FeatureVector) instance.getTarget());
+
+            Integer id = signatures.get(signature);
+            if (id == null) {
+                id = signatureInstances.size();
+                signatures.put(signature, id);
+                signatureInstances.add(instance);
+            }
+            docSignatures[doc] = id;
+        }
+
+        logger.info(signatureInstances.size() + " distinct feature vectors in " + data.size() + " documents");
+
+        groupRegressionDocuments();
+    }
+
+    /**
+     *  Copies the features of every feature vector, and lists the documents
+     *   with features in the order of their feature vectors, for the 
+     *   regression.
+     */
+    private void groupRegressionDocuments() {
+        int numSignatures = signatureInstances.size();
+
+        signatureFeatureIndices = new int[numSignatures][];
+        signatureFeatureValues = new double[numSignatures][];
+
+        for (int signature = 0; signature < numSignatures; signature++) {
+            FeatureVector features = (FeatureVector) signatureInstances.get(signature).getTarget();
+            int numLocations = features == null ? 0 : features.numLocations();
+
+            signatureFeatureIndices[signature] = new int[numLocations];
+            signatureFeatureValues[signature] = new double[numLocations];
+            for (int loc = 0; loc < numLocations; loc++) {
+                signatureFeatureIndices[signature][loc] = features.indexAtLocation(loc);
+                signatureFeatureValues[signature][loc] = features.valueAtLocation(loc);
+            }
+        }
+
+        // the documents without features are left out of the regression
+        regressionGroupStarts = new int[numSignatures + 1];
+        for (int doc = 0; doc < data.size(); doc++) {
+            if (data.get(doc).instance.getTarget() != null) {
+                regressionGroupStarts[docSignatures[doc] + 1]++;
+            }
+        }
+        for (int signature = 0; signature < numSignatures; signature++) {
+            regressionGroupStarts[signature + 1] += regressionGroupStarts[signature];
+        }
+
+        regressionDocs = new int[regressionGroupStarts[numSignatures]];
+        int[] nextPosition = Arrays.copyOf(regressionGroupStarts, numSignatures);
+        for (int doc = 0; doc < data.size(); doc++) {
+            if (data.get(doc).instance.getTarget() != null) {
+                regressionDocs[nextPosition[docSignatures[doc]]++] = doc;
+            }
+        }
+
+        regressionCountStarts = new int[regressionDocs.length + 1];
+        regressionTopics = new int[regressionDocs.length];
+        regressionCounts = new int[regressionDocs.length];
+    }
+
+    /**
+     *  Refills the topic counts of the regression documents from their 
+     *   current topics, growing the count arrays if they are too small.
+     */
+    private void fillRegressionCounts() {
+
+        if (regressionDocTopicCounts == null) {
+            regressionDocTopicCounts = new DocTopicCounts(numTopics);
+        }
+        DocTopicCounts docTopicCounts = regressionDocTopicCounts;
+
+        int numEntries = 0;
+
+        for (int i = 0; i < regressionDocs.length; i++) {
+            TopicAssignment document = data.get(regressionDocs[i]);
+            docTopicCounts.set(document.getTopics(), document.topicSequence.getLength());
+
+            if (numEntries + docTopicCounts.size() > regressionTopics.length) {
+                int capacity = Math.max(numEntries + docTopicCounts.size(), 2 * regressionTopics.length);
+                regressionTopics = Arrays.copyOf(regressionTopics, capacity);
+                regressionCounts = Arrays.copyOf(regressionCounts, capacity);
+            }
+
+            for (int j = 0; j < docTopicCounts.size(); j++) {
+                int topic = docTopicCounts.topicAt(j);
+                regressionTopics[numEntries] = topic;
+                regressionCounts[numEntries] = docTopicCounts.getCount(topic);
+                numEntries++;
+            }
+            regressionCountStarts[i + 1] = numEntries;
+        }
+    }
+
+    /**
+     *  The features of a document, compared by value
+     */
+    private static class FeatureSignature {
+        final FeatureVector features;   // null for a document without features
+        final int hashCode;
+
+        FeatureSignature(FeatureVector features) {
+            this.features = features;
+
+            int hash = 1;
+            if (features != null) {
+                for (int loc = 0; loc < features.numLocations(); loc++) {
+                    long bits = Double.doubleToLongBits(features.valueAtLocation(loc));
+                    hash = 31 * hash + features.indexAtLocation(loc);
+                    hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+                }
+            }
+            this.hashCode = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            FeatureVector other = ((FeatureSignature) object).features;
+            if (features == null || other == null) {
+                return features == other;
+            }
+            if (features.numLocations() != other.numLocations()) {
+                return false;
+            }
+            for (int loc = 0; loc < features.numLocations(); loc++) {
+                if (features.indexAtLocation(loc) != other.indexAtLocation(loc) ||
+                    Double.doubleToLongBits(features.valueAtLocation(loc)) != 
+                    Double.doubleToLongBits(other.valueAtLocation(loc))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 
-//		alphaCache    = new double[numDocs][numTopics];
-//      alphaSumCache = new double[numDocs];
+    /**
+     *  The number of alpha values (numTopics per distinct feature vector)
+     *   that may be cached between regressions; 0 recomputes the alphas of
+     *   every document in every iteration.
+     */
+    public void setAlphaCacheSize(long alphaCacheSize) {
+        this.alphaCacheSize = alphaCacheSize;
     }
 
     @Override
     protected WorkerRunnable makeWorkerRunnable(int offset, int docsPerThread) {
         TypeTopicCounts typeTopicCounts = this.typeTopicCounts;
         int[] tokensPerTopic = this.tokensPerTopic;
-        double[] alpha = this.alpha;
 
         // If there is only one thread, copy the typeTopicCounts
         //  arrays directly, rather than allocating new memory.
-        // DMR also needs to copy the alpha array, since they are modified on a per-document basis.
+        // The workers only read alpha: the alphas of a document are cached
+        //  in its TopicAssignment or computed into a scratch array.
 
         if (numThreads > 1) // otherwise, make a copy for the thread
         {
-            typeTopicCounts = new TypeTopicCounts(typeTopicCounts);
+            if (!sharedCounts) {
+                typeTopicCounts = new TypeTopicCounts(typeTopicCounts);
+            }
             tokensPerTopic = Arrays.copyOf(tokensPerTopic, tokensPerTopic.length);
-            alpha = Arrays.copyOf(alpha, alpha.length);
         }
 
         WorkerRunnable runnable = new DMRWorkerRunnable(
@@ -106,7 +289,7 @@ public class DMRTopicModel extends ParallelTopicModel {
     public void optimizeAlpha() {
 
         // Create a "fake" pipe with the features in the data and 
-        //  a trove int-int hashmap of topic counts in the target.
+        //  the topics in the target, for the parameters.
 
         if (parameterPipe == null) {
             parameterPipe = new Noop();
@@ -115,64 +298,80 @@ public class DMRTopicModel extends ParallelTopicModel {
             parameterPipe.setTargetAlphabet(topicAlphabet);
         }
 
-        InstanceList parameterInstances = new InstanceList(parameterPipe);
-
         if (dmrParameters == null) {
             dmrParameters = new MaxEnt(parameterPipe, new double[numFeatures * numTopics]);
         }
 
-        for (TopicAssignment ta : data) {
+        // The regression reads the features of each feature vector and the
+        //  topic counts of its documents from the arrays kept in the model.
+        fillRegressionCounts();
 
-            if (ta.instance.getTarget() == null) {
-                continue;
-            }
+        DMROptimizable optimizable = new DMROptimizable(
+                signatureFeatureIndices, signatureFeatureValues, regressionGroupStarts,
+                regressionCountStarts, regressionTopics, regressionCounts, dmrParameters);
+        optimizable.setRegularGaussianPriorVariance(0.5);
+        optimizable.setInterceptGaussianPriorVariance(100.0);
+
+        // The sampling threads are idle during the regression
+        optimizable.setNumThreads(numThreads);
 
-            FeatureCounter counter = new FeatureCounter(topicAlphabet);
+        LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
 
-            for (int topic : ta.topicSequence.getFeatures()) {
-                counter.increment(topic);
+        try {
+            // Optimize once
+            try {
+                optimizer.optimize();
+            } catch (OptimizationException e) {
+                // step size too small
             }
 
-            // Put the real target in the data field, and the
-            //  topic counts in the target field
-            parameterInstances.add(new Instance(ta.instance.getTarget(), counter.toFeatureVector(), null, null));
+            // Restart with a fresh initialization to improve likelihood
+            try {
+                optimizer.optimize();
+            } catch (OptimizationException e) {
+                // step size too small
+            }
+        } finally {
+            optimizable.shutdown();
         }
+        dmrParameters = optimizable.getClassifier();
 
-        DMROptimizable optimizable = new DMROptimizable(parameterInstances, dmrParameters);
-        optimizable.setRegularGaussianPriorVariance(0.5);
-        optimizable.setInterceptGaussianPriorVariance(100.0);
+        cacheAlphas();
+    }
 
-        LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
+    /**
+     *  Sets the cached alphas of the distinct feature vectors from the new
+     *   regression parameters, filling the cache up to alphaCacheSize, and
+     *   points each document at the alphas of its features.
+     */
+    protected void cacheAlphas() {
 
-        // Optimize once
-        try {
-            optimizer.optimize();
-        } catch (OptimizationException e) {
-            // step size too small
+        if (signatureAlphas == null) {
+            signatureAlphas = new double[signatureInstances.size()][];
+            signatureAlphaMax = new double[signatureInstances.size()];
         }
 
-        // Restart with a fresh initialization to improve likelihood
-        try {
-            optimizer.optimize();
-        } catch (OptimizationException e) {
-            // step size too small
+        long cacheLeft = alphaCacheSize;
+
+        for (int signature = 0; signature < signatureAlphas.length; signature++) {
+            if (signatureAlphas[signature] == null) {
+                if (cacheLeft < numTopics) {
+                    break;
+                }
+                signatureAlphas[signature] = new double[numTopics];
+            }
+            cacheLeft -= numTopics;
+
+            setAlphasFromDocFeatures(signatureAlphas[signature], signatureInstances.get(signature), this.dmrParameters, this.numFeatures, this.defaultFeatureIndex);
+            signatureAlphaMax[signature] = MatrixOps.max(signatureAlphas[signature]);
         }
-        dmrParameters = optimizable.getClassifier();
 
-//        cacheAlphas();
+        for (int doc = 0; doc < data.size(); doc++) {
+            TopicAssignment document = data.get(doc);
+            document.alpha = signatureAlphas[docSignatures[doc]];
+            document.alphaMax = signatureAlphaMax[docSignatures[doc]];
+        }
     }
-
-//	private void cacheAlphas() {
-//		
-//		for (int doc=0; doc < data.size(); doc++) {
-//            Instance instance = data.get(doc).instance;
-//            //FeatureSequence tokens = (FeatureSequence) instance.getData();
-//            if (instance.getTarget() == null) { continue; }
-//            //int numTokens = tokens.getLength();
-//
-//            alphaSumCache[doc] = setAlphasFromDocFeatures(alphaCache[doc], instance, this.dmrParameters, this.numFeatures, this.defaultFeatureIndex);
-//        }
-//	}
     /**
      *  Set alpha based on features in an instance
      *
@@ -192,15 +391,20 @@ public class DMRTopicModel extends ParallelTopicModel {
         double[] parameters = dmrParameters.getParameters();
         double alphaSum = 0.0;
 
+        // only the stored locations of the (sparse) vector are visited
+        int numLocations = features.numLocations();
+
         for (int topic = 0; topic < alpha.length; topic++) {
-            alpha[topic] = parameters[topic * numFeatures + defaultFeatureIndex]
-                    + MatrixOps.rowDotProduct(parameters,
-                    numFeatures,
-                    topic, features,
-                    defaultFeatureIndex,
-                    null);
-
-            alpha[topic] = Math.exp(alpha[topic]);
+            int offset = topic * numFeatures;
+            double score = parameters[offset + defaultFeatureIndex];
+            for (int loc = 0; loc < numLocations; loc++) {
+                int index = features.indexAtLocation(loc);
+                if (index < defaultFeatureIndex) {
+                    score += parameters[offset + index] * features.valueAtLocation(loc);
+                }
+            }
+
+            alpha[topic] = Math.exp(score);
             alphaSum += alpha[topic];
         }
         return alphaSum;
@@ -304,23 +508,42 @@ public class DMRTopicModel extends ParallelTopicModel {
             if (dmrParameters == null) { // before we start doing regression, behave like normal LDA
                 super.prepareToSample();
             }
+            else if (mhSteps == 0) {
+                initInverseDenominators();
+            }
             // in normal LDA, this recalculates the smoothingOnlyMass and cachedCoefficients
-            // but after we start regression, we have to do this with every doc since the alphas
-            //   are different for every doc, so we can skip it here.
+            // but after we start regression, the alphas are different for every doc, so 
+            //   sampleTopicsForOneDocWithAlpha does without them.
         }
 
         @Override
         protected void sampleTopicsForOneDoc(TopicAssignment document, boolean readjustTopicsAndStats) {
 
-            if (dmrParameters != null) {
-                // set the alphas for each doc before sampling
-                setAlphasFromDocFeatures(this.alpha, document.instance, dmrParameters, numFeatures, defaultFeatureIndex);
-                this.smoothingOnlyMass =
-                        initSmoothingOnlyMassAndCachedCoefficients(this.cachedCoefficients,
-                        this.alpha, this.beta, this.betaSum, this.tokensPerTopic);
+            if (dmrParameters != null && mhSteps == 0) {
+                if (document.alpha != null) {
+                    sampleTopicsForOneDocWithAlpha(document, document.alpha, document.alphaMax);
+                }
+                else {
+                    setAlphasFromDocFeatures(documentAlpha, document.instance, dmrParameters, numFeatures, defaultFeatureIndex);
+                    sampleTopicsForOneDocWithAlpha(document, documentAlpha, MatrixOps.max(documentAlpha));
+                }
+                return;
             }
+            // the Metropolis-Hastings sampler asks for the alphas of each doc (getDocumentAlpha)
             super.sampleTopicsForOneDoc(document, readjustTopicsAndStats);
         }
+
+        @Override
+        protected double[] getDocumentAlpha(TopicAssignment document, double[] scratch) {
+            if (dmrParameters == null) {
+                return this.alpha;
+            }
+            if (document.alpha != null) {
+                return document.alpha;
+            }
+            setAlphasFromDocFeatures(scratch, document.instance, dmrParameters, numFeatures, defaultFeatureIndex);
+            return scratch;
+        }
     }
 
     public static class DMRTopicInferencer extends TopicInferencer {
@@ -373,9 +596,10 @@ public class DMRTopicModel extends ParallelTopicModel {
      **/
     @Override
     public TopicInferencer getInferencer() {
+        // the inferencer sets its alpha for every instance
         return new DMRTopicInferencer(typeTopicCounts, tokensPerTopic,
                 data.get(0).instance.getDataAlphabet(),
-                alpha, beta, betaSum,
+                Arrays.copyOf(alpha, alpha.length), beta, betaSum,
                 this.dmrParameters, this.numFeatures, this.defaultFeatureIndex);
     }
 
@@ -429,7 +653,8 @@ public class DMRTopicModel extends ParallelTopicModel {
      **/
     @Override
     public MarginalProbEstimator getProbEstimator() {
-        return new DMRProbEstimator(numTopics, alpha, alphaSum, beta,
+        // the estimator sets its alpha for every instance
+        return new DMRProbEstimator(numTopics, Arrays.copyOf(alpha, alpha.length), alphaSum, beta,
                 typeTopicCounts, tokensPerTopic, logger,
                 dmrParameters, numFeatures, defaultFeatureIndex);
     }
@@ -0,0 +1,63 @@
+package edu.umass.cs.mallet.users.kan.topics;
+
+/** The topic counts of one document, kept dense (for lookups) and as
+ *   a list of the topics with non-zero counts (for the sampling
+ *   buckets), so that a topic is added or removed in constant time.
+ *
+ *   One instance is reused for all the documents of a sampler: clear()
+ *   only resets the topics that are in the list.
+ */
+
+public class DocTopicCounts {
+
+	int[] counts;      // the count of every topic, 0 if it is not in the document
+	int[] topics;      // the topics with non-zero counts, in no particular order
+	int[] positions;   // the position of each of these topics in topics
+	int size;          // the number of topics with non-zero counts
+
+	public DocTopicCounts (int numTopics) {
+		counts = new int[numTopics];
+		topics = new int[numTopics];
+		positions = new int[numTopics];
+		size = 0;
+	}
+
+	/** Counts the topics of the first length tokens of a document */
+	public void set (int[] docTopics, int length) {
+		clear();
+		for (int position = 0; position < length; position++) {
+			increment(docTopics[position]);
+		}
+	}
+
+	public void increment (int topic) {
+		if (counts[topic]++ == 0) {
+			positions[topic] = size;
+			topics[size++] = topic;
+		}
+	}
+
+	/** Removes one token of the topic, and the topic from the list if
+	 *   that was its last token, by moving the last topic into its place */
+	public void decrement (int topic) {
+		if (--counts[topic] == 0) {
+			int last = topics[--size];
+			topics[positions[topic]] = last;
+			positions[last] = positions[topic];
+		}
+	}
+
+	public int getCount (int topic) { return counts[topic]; }
+
+	public int size () { return size; }
+
+	/** @return the topic at position i of the list, i &lt; size() */
+	public int topicAt (int i) { return topics[i]; }
+
+	public void clear () {
+		for (int i = 0; i < size; i++) {
+			counts[topics[i]] = 0;
+		}
+		size = 0;
+	}
+}
@@ -39,6 +39,7 @@ public class MarginalProbEstimator implements Serializable {
     protected double betaSum;
     protected double smoothingOnlyMass = 0.0;
     protected double[] cachedCoefficients;
+    protected transient DocTopicCounts docTopicCounts; // reused for every particle
     protected TypeTopicCounts typeTopicCounts; // indexed by <feature index, topic index>
     protected int[] tokensPerTopic; // indexed by <topic index>
     protected Randoms random;
@@ -74,6 +75,7 @@ public class MarginalProbEstimator implements Serializable {
         this.random = new Randoms();
 
         cachedCoefficients = new double[numTopics];
+        docTopicCounts = new DocTopicCounts(numTopics);
 
         // Initialize the smoothing-only sampling bucket
 
@@ -174,15 +176,11 @@ public class MarginalProbEstimator implements Serializable {
         //  including out-of-vocabulary words
         int tokensSoFar = 0;
 
-        int[] localTopicCounts = new int[numTopics];
-        int[] localTopicIndex = new int[numTopics];
-
-        // Build an array that densely lists the topics that
-        //  have non-zero counts.
-        int denseIndex = 0;
-
-        // Record the total number of non-zero topics
-        int nonZeroTopics = denseIndex;
+        // The topics with non-zero counts are listed in localTopicIndex
+        docTopicCounts.clear();
+        int[] localTopicCounts = docTopicCounts.counts;
+        int[] localTopicIndex = docTopicCounts.topics;
+        int denseIndex;
 
         //		Initialize the topic count/beta sampling bucket
         double topicBetaMass = 0.0;
@@ -221,36 +219,10 @@ public class MarginalProbEstimator implements Serializable {
                     topicBetaMass -= beta * localTopicCounts[oldTopic]
                             / (tokensPerTopic[oldTopic] + betaSum);
 
-                    // Decrement the local doc/topic counts
-
-                    localTopicCounts[oldTopic]--;
-
-                    // Maintain the dense index, if we are deleting
-                    //  the old topic
-                    if (localTopicCounts[oldTopic] == 0) {
+                    // Decrement the local doc/topic counts (and drop the
+                    //  old topic from the non-zero topics if it reaches 0)
 
-                        // First get to the dense location associated with
-                        //  the old topic.
-
-                        denseIndex = 0;
-
-                        // We know it's in there somewhere, so we don't
-                        //  need bounds checking.
-                        while (localTopicIndex[denseIndex] != oldTopic) {
-                            denseIndex++;
-                        }
-
-                        // shift all remaining dense indices to the left.
-                        while (denseIndex < nonZeroTopics) {
-                            if (denseIndex < localTopicIndex.length - 1) {
-                                localTopicIndex[denseIndex] =
-                                        localTopicIndex[denseIndex + 1];
-                            }
-                            denseIndex++;
-                        }
-
-                        nonZeroTopics--;
-                    }
+                    docTopicCounts.decrement(oldTopic);
 
                     // Add the old topic's contribution back into the
                     //  normalizing constants.
@@ -291,7 +263,7 @@ public class MarginalProbEstimator implements Serializable {
 
                             sample /= beta;
 
-                            for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                            for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
                                 int topic = localTopicIndex[denseIndex];
 
                                 sample -= localTopicCounts[topic]
@@ -338,31 +310,9 @@ public class MarginalProbEstimator implements Serializable {
                     topicBetaMass -= beta * localTopicCounts[newTopic]
                             / (tokensPerTopic[newTopic] + betaSum);
 
-                    localTopicCounts[newTopic]++;
-
-                    // If this is a new topic for this document,
-                    //  add the topic to the dense index.
-                    if (localTopicCounts[newTopic] == 1) {
-
-                        // First find the point where we
-                        //  should insert the new topic by going to
-                        //  the end (which is the only reason we're keeping
-                        //  track of the number of non-zero
-                        //  topics) and working backwards
-
-                        denseIndex = nonZeroTopics;
-
-                        while (denseIndex > 0
-                                && localTopicIndex[denseIndex - 1] > newTopic) {
-
-                            localTopicIndex[denseIndex] =
-                                    localTopicIndex[denseIndex - 1];
-                            denseIndex--;
-                        }
-
-                        localTopicIndex[denseIndex] = newTopic;
-                        nonZeroTopics++;
-                    }
+                    // If this is a new topic for this document, this
+                    //  also adds the topic to the non-zero topics.
+                    docTopicCounts.increment(newTopic);
 
                     //	update the coefficients for the non-zero topics
                     cachedCoefficients[newTopic] =
@@ -450,7 +400,7 @@ public class MarginalProbEstimator implements Serializable {
 
                     sample /= beta;
 
-                    for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                    for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
                         int topic = localTopicIndex[denseIndex];
 
                         sample -= localTopicCounts[topic]
@@ -496,31 +446,9 @@ public class MarginalProbEstimator implements Serializable {
             topicBetaMass -= beta * localTopicCounts[newTopic]
                     / (tokensPerTopic[newTopic] + betaSum);
 
-            localTopicCounts[newTopic]++;
-
-            // If this is a new topic for this document,
-            //  add the topic to the dense index.
-            if (localTopicCounts[newTopic] == 1) {
-
-                // First find the point where we
-                //  should insert the new topic by going to
-                //  the end (which is the only reason we're keeping
-                //  track of the number of non-zero
-                //  topics) and working backwards
-
-                denseIndex = nonZeroTopics;
-
-                while (denseIndex > 0
-                        && localTopicIndex[denseIndex - 1] > newTopic) {
-
-                    localTopicIndex[denseIndex] =
-                            localTopicIndex[denseIndex - 1];
-                    denseIndex--;
-                }
-
-                localTopicIndex[denseIndex] = newTopic;
-                nonZeroTopics++;
-            }
+            // If this is a new topic for this document, this
+            //  also adds the topic to the non-zero topics.
+            docTopicCounts.increment(newTopic);
 
             //	update the coefficients for the non-zero topics
             cachedCoefficients[newTopic] =
@@ -537,7 +465,7 @@ public class MarginalProbEstimator implements Serializable {
         //	Clean up our mess: reset the coefficients to values with only
         //	smoothing. The next doc will update its own non-zero topics...
 
-        for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+        for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
             int topic = localTopicIndex[denseIndex];
 
             cachedCoefficients[topic] =
@@ -587,6 +515,8 @@ public class MarginalProbEstimator implements Serializable {
 
         smoothingOnlyMass = in.readDouble();
         cachedCoefficients = (double[]) in.readObject();
+
+        docTopicCounts = new DocTopicCounts(numTopics);
     }
 
     public static MarginalProbEstimator read(File f) throws Exception {
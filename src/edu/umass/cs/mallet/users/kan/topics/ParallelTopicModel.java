@@ -27,9 +27,14 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -113,6 +118,17 @@ public class ParallelTopicModel implements Serializable {
 //	int maxTypeCount; 
 	
 	int numThreads = 1;
+	// all the workers sample against the one typeTopicCounts instead of their own copies
+	boolean sharedCounts = false;
+	// the number of Metropolis-Hastings steps per token, or 0 for the SparseLDA sampler
+	int mhSteps = 0;
+	// sample the tokens of a worker grouped by type rather than by document
+	boolean wordMajor = false;
+	// with several threads the documents are cut into this many chunks per
+	//  thread, of about the same number of tokens, and in every iteration 
+	//  each worker claims the next chunk as soon as it is done with one
+	int chunksPerThread = 8;
+	AtomicInteger nextChunk;
 	
 	TopicProgressLogger topicLogger;
 	
@@ -170,6 +186,12 @@ public class ParallelTopicModel implements Serializable {
 		this.wordsPerTopic = n;
 	}
 
+	/**
+	 *  Seed the random numbers of the workers. With several threads a run is
+	 *   only reproducible if each thread samples a fixed share of the
+	 *   documents against its own copy of the counts, that is with one chunk
+	 *   per thread (see setChunksPerThread) and without shared counts.
+	 */
 	public void setRandomSeed(int seed) {
 		randomSeed = seed;
 	}
@@ -197,6 +219,45 @@ public class ParallelTopicModel implements Serializable {
 		this.numThreads = threads;
 	}
 
+	/**
+	 *  With several threads, let all the workers update one set of
+	 *   type/topic counts, guarded by striped locks, rather than each 
+	 *   keeping a copy. The memory then does not grow with the number 
+	 *   of threads, and only the topic totals are synchronised.
+	 */
+	public void setSharedCounts(boolean shared) {
+		this.sharedCounts = shared;
+	}
+
+	/**
+	 *  Sample with alias table proposals and the given number of 
+	 *   Metropolis-Hastings steps per token (see WorkerRunnable.useAliasSampler),
+	 *   or with the SparseLDA sampler if mhSteps is 0.
+	 */
+	public void setAliasSampler(int mhSteps) {
+		this.mhSteps = mhSteps;
+	}
+
+	/**
+	 *  Sweep over the tokens of each worker type by type instead of 
+	 *   document by document (see WorkerRunnable.useWordMajorSweep). 
+	 *   This needs the alias sampler.
+	 */
+	public void setWordMajorSweep(boolean wordMajor) {
+		this.wordMajor = wordMajor;
+	}
+
+	/**
+	 *  The number of chunks per thread the documents are cut into; with 1
+	 *   each thread samples a fixed share of the tokens. With more, which
+	 *   worker samples a chunk, and so the copy of the counts and the random
+	 *   numbers it samples it with, depends on the timing of the threads,
+	 *   so the runs are not reproducible even with a random seed.
+	 */
+	public void setChunksPerThread(int chunksPerThread) {
+		this.chunksPerThread = chunksPerThread;
+	}
+
 	/** Define how often and where to save a text representation of the current state.
 	 *  Files are GZipped.
 	 *
@@ -324,34 +385,108 @@ public class ParallelTopicModel implements Serializable {
 	
 
 	/**
-	 *   Collect the typeTopicCounts and tokensPerTopic from 
-	 *   the workers, add them up, and propagate the new sums
-	 *   back to the workers.
+	 *   Apply the topic changes of every worker to the global
+	 *   typeTopicCounts and tokensPerTopic, and the changes of the
+	 *   other workers to the copy of each worker. Only the tokens that
+	 *   were reassigned are touched, rather than rebuilding and copying
+	 *   the whole table.
 	 *    
 	 *   @param runnables  the workers
 	 **/
 	private void synchTypeTopicCounts (WorkerRunnable[] runnables) {
 
-		// Clear the global topic totals
-		Arrays.fill(tokensPerTopic, 0);
+		if (sharedCounts) {
+			synchTokensPerTopic(runnables);
+			return;
+		}
 		
-		typeTopicCounts.clearCounts();
-
 		for (WorkerRunnable runnable: runnables) {
-
-			// Now handle the individual type topic counts
-			runnable.aggregateCountsFromWorkersToGlobal(tokensPerTopic, typeTopicCounts);
+			runnable.applyChanges(tokensPerTopic, typeTopicCounts);
 		}
 		
 		typeTopicCounts.validateCounts();
 		
         for (WorkerRunnable runnable: runnables) {
             
-            runnable.resetWorkerCountsToGlobalValues(tokensPerTopic, typeTopicCounts);
+            runnable.applyChangesOfOtherWorkers(tokensPerTopic, runnables);
+            
+            assert countsMatchAssignments(runnable.typeTopicCounts, runnable.tokensPerTopic) :
+            	"the counts of a worker do not match the topic assignments";
         }
 	}
 	
 
+	/**
+	 *   Rebuilds the counts from the topic assignments and compares them with
+	 *   a set of counts, to check that the changes replayed on the counts 
+	 *   add up. This is slow, and only meant to be called in assertions.
+	 *    
+	 *   @return whether counts and tokensPerTopic are exactly the counts of
+	 *            the topic assignments of the documents
+	 **/
+	boolean countsMatchAssignments(TypeTopicCounts counts, int[] tokensPerTopic) {
+		
+		TypeTopicCounts expected = new TypeTopicCounts(counts);
+		expected.clearCounts();
+		int[] expectedTokensPerTopic = new int[numTopics];
+		
+		for (TopicAssignment document : data) {
+			FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+			int[] topics = document.topicSequence.getFeatures();
+			
+			for (int position = 0; position < tokens.size(); position++) {
+				expected.initializeTypeTopicCount(tokens.getIndexAtPosition(position), topics[position]);
+				expectedTokensPerTopic[topics[position]]++;
+			}
+		}
+		
+		if (! Arrays.equals(expectedTokensPerTopic, tokensPerTopic)) {
+			logger.warning("The topic totals do not match the topic assignments");
+			return false;
+		}
+		
+		for (int type = 0; type < numTypes; type++) {
+			int numEntries = expected.numEntries(type);
+			if (counts.numEntries(type) != numEntries) {
+				logger.warning("Type " + type + " has " + counts.numEntries(type) + " topics, expected " + numEntries);
+				return false;
+			}
+			for (int index = 0; index < numEntries; index++) {
+				int topic = expected.topicAt(type, index);
+				if (counts.getCount(type, topic) != expected.countAt(type, index)) {
+					logger.warning("Type " + type + " has a count of " + counts.getCount(type, topic) + 
+							" for topic " + topic + ", expected " + expected.countAt(type, index));
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+
+	/**
+	 *   With shared type/topic counts, only the topic totals of the workers
+	 *   need to be brought together: add the change each worker made since 
+	 *   the last synchronisation to the global totals and copy them back.
+	 *    
+	 *   @param runnables  the workers
+	 **/
+	private void synchTokensPerTopic (WorkerRunnable[] runnables) {
+
+		int[] previousTokensPerTopic = Arrays.copyOf(tokensPerTopic, numTopics);
+		
+		for (WorkerRunnable runnable: runnables) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				tokensPerTopic[topic] += runnable.tokensPerTopic[topic] - previousTokensPerTopic[topic];
+			}
+		}
+		
+		for (WorkerRunnable runnable: runnables) {
+			System.arraycopy(tokensPerTopic, 0, runnable.tokensPerTopic, 0, numTopics);
+		}
+	}
+	
+
 	/** 
 	 *  Gather statistics on the size of documents 
 	 *  and create histograms for use in Dirichlet hyperparameter
@@ -496,51 +631,57 @@ public class ParallelTopicModel implements Serializable {
 		WorkerRunnable[] runnables = initializeWorkerThreads();
 
 		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
 	
-		for (int iteration = 1; iteration <= numIterations; iteration++) {
+			for (int iteration = 1; iteration <= numIterations; iteration++) {
 
-			long iterationStart = System.currentTimeMillis();
+				long iterationStart = System.currentTimeMillis();
 			
-			traceBeginIteration(iteration);
+				traceBeginIteration(iteration);
 
-			if (numThreads > 1) {
+				if (numThreads > 1) {
 			
-				runWorkers(runnables, iteration, executor);
+					runWorkers(runnables, iteration, executor);
 				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
+					//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
 				
-				synchTypeTopicCounts(runnables);
+					synchTypeTopicCounts(runnables);
 				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-			}
-			else {
-				if (iteration > burninPeriod && optimizeInterval != 0 &&
-					iteration % saveSampleInterval == 0) {
-					runnables[0].collectAlphaStatistics();
+					//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
+				}
+				else {
+					if (iteration > burninPeriod && optimizeInterval != 0 &&
+						iteration % saveSampleInterval == 0) {
+						runnables[0].collectAlphaStatistics();
+					}
+					runnables[0].run();
 				}
-				runnables[0].run();
-			}
 
-                        traceElapsedTime(iterationStart);
+	                        traceElapsedTime(iterationStart);
 
-			if (iteration > burninPeriod && optimizeInterval != 0 &&
-				iteration % optimizeInterval == 0) {
+				if (iteration > burninPeriod && optimizeInterval != 0 &&
+					iteration % optimizeInterval == 0) {
 
-				updateAlphaStatistics(runnables);
-				optimizeAlpha();
-				optimizeBeta();
+					updateAlphaStatistics(runnables);
+					optimizeAlpha();
+					optimizeBeta();
 				
-		        // Now publish the new values
-		        for (int thread = 0; thread < numThreads; thread++) {
-		            runnables[thread].resetBeta(beta, betaSum);
-		        }
-				logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
-			}
+			        // Now publish the new values
+			        for (int thread = 0; thread < numThreads; thread++) {
+			            runnables[thread].resetBeta(beta, betaSum);
+			        }
+					logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
+				}
 			
-			traceEndIteration(iteration);
-		}
+				assert countsMatchAssignments(typeTopicCounts, tokensPerTopic) :
+					"the counts do not match the topic assignments after iteration " + iteration;
+				
+				traceEndIteration(iteration);
+			}
 
-		executor.shutdownNow();
+		} finally {
+			executor.shutdownNow();
+		}
 		
 		if (topicLogger != null)
 		    topicLogger.close();
@@ -605,9 +746,15 @@ public class ParallelTopicModel implements Serializable {
     }
 
 
+    /**
+     *  Runs one iteration of all the workers on the thread pool, and 
+     *   returns when they have all finished. 
+     *  @throws IllegalStateException if a worker failed (with the worker's
+     *           exception as the cause) or the wait was interrupted
+     */
     private void runWorkers(WorkerRunnable[] runnables, int iteration, ExecutorService executor)
     {
-        // Submit runnables to thread pool
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(numThreads);
         
         for (int thread = 0; thread < numThreads; thread++) {
         	if (iteration > burninPeriod && optimizeInterval != 0 &&
@@ -615,38 +762,27 @@ public class ParallelTopicModel implements Serializable {
         		runnables[thread].collectAlphaStatistics();
         	}
         	
-        	logger.fine("submitting thread " + thread);
-        	executor.submit(runnables[thread]);
-        	//runnables[thread].run();
+        	tasks.add(Executors.callable(runnables[thread]));
         }
+        nextChunk.set(0);
         
-        // I'm getting some problems that look like 
-        //  a thread hasn't started yet when it is first
-        //  polled, so it appears to be finished. 
-        // This only occurs in very short corpora.
+        // invokeAll only returns once every worker is done, and the
+        //  workers' writes to their counts happen-before it returns
+        logger.fine("submitting " + numThreads + " threads");
         try {
-        	Thread.sleep(20);
-        } catch (InterruptedException e) {
-        	
-        }
-        
-        boolean finished = false;
-        while (! finished) {
-        	
-        	try {
-        		Thread.sleep(10);
-        	} catch (InterruptedException e) {
-        		
-        	}
+        	List<Future<Object>> results = executor.invokeAll(tasks);
         	
-        	finished = true;
-        	
-        	// Are all the threads done?
         	for (int thread = 0; thread < numThreads; thread++) {
-        		//logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-        		finished = finished && runnables[thread].isFinished;
+        		try {
+        			results.get(thread).get();
+        		} catch (ExecutionException e) {
+        			throw new IllegalStateException("Sampling thread " + thread + 
+        					" failed in iteration " + iteration, e.getCause());
+        		}
         	}
-        	
+        } catch (InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        	throw new IllegalStateException("Interrupted in iteration " + iteration, e);
         }
     }
 	
@@ -660,20 +796,44 @@ public class ParallelTopicModel implements Serializable {
 	private WorkerRunnable[] initializeWorkerThreads() {
 		WorkerRunnable[] runnables = new WorkerRunnable[numThreads];
 
-		int docsPerThread = data.size() / numThreads;
-		int offset = 0;
+		if (mhSteps > 0) {
+			// before the workers copy the counts
+			typeTopicCounts.indexPackedRows();
+		}
 
 		if (numThreads > 1) {
 		
+			if (sharedCounts) {
+				typeTopicCounts.shareBetweenThreads();
+			}
+			
+			// The documents vary a lot in length, so they are split by
+			//  tokens rather than by documents. With one chunk per thread,
+			//  thread t samples chunk t. With more, the workers ignore
+			//  their own share and all claim chunks from nextChunk, from
+			//  chunk 0 on, so the offset and docsPerThread given to
+			//  makeWorkerRunnable only matter for one chunk per thread.
+			int chunksOfThread = Math.max(1, chunksPerThread);
+			if (randomSeed != -1 && (chunksOfThread > 1 || sharedCounts)) {
+				logger.info("The random seed does not make runs with " + numThreads + " threads reproducible" +
+						" unless they have 1 chunk per thread and their own counts");
+			}
+			int[] chunkStarts = makeChunks(numThreads * chunksOfThread);
+			nextChunk = new AtomicInteger();
+			
 			for (int thread = 0; thread < numThreads; thread++) {
 				
-				// some docs may be missing at the end due to integer division
-				if (thread == numThreads - 1) {
-					docsPerThread = data.size() - offset;
-				}
+				int offset = chunkStarts[thread * chunksOfThread];
+				int docsPerThread = chunkStarts[(thread + 1) * chunksOfThread] - offset;
 
 				runnables[thread] = makeWorkerRunnable(offset, docsPerThread);
-				offset += docsPerThread;
+				
+				if (sharedCounts) {
+					runnables[thread].shareCounts();
+				}
+				if (chunksPerThread > 1) {
+					runnables[thread].shareChunks(chunkStarts, nextChunk);
+				}
 			}
 		}
 		else {
@@ -681,7 +841,7 @@ public class ParallelTopicModel implements Serializable {
 			// If there is only one thread, copy the typeTopicCounts
 			//  arrays directly, rather than allocating new memory.
 
-			runnables[0] = makeWorkerRunnable(offset, docsPerThread);
+			runnables[0] = makeWorkerRunnable(0, data.size());
 
 			// If there is only one thread, we 
 			//  can avoid communications overhead.
@@ -689,9 +849,46 @@ public class ParallelTopicModel implements Serializable {
 			//  gather statistics for its portion of the data.
 			runnables[0].makeOnlyThread();
 		}
+		
+		if (mhSteps > 0) {
+			for (WorkerRunnable runnable: runnables) {
+				runnable.useAliasSampler(mhSteps);
+				if (wordMajor) {
+					runnable.useWordMajorSweep();
+				}
+			}
+		}
 		return runnables;
 	}
 
+	/**
+	 *  Cuts the documents into runs of consecutive documents with about 
+	 *   the same number of tokens each. A document is never split, so a
+	 *   chunk may hold more tokens than its share, and another none.
+	 *  @return the first document of each chunk, followed by the number of documents
+	 */
+	protected int[] makeChunks(int numChunks) {
+		long totalTokens = 0;
+		for (TopicAssignment document: data) {
+			totalTokens += document.getTokens().getLength();
+		}
+		
+		int[] chunkStarts = new int[numChunks + 1];
+		long tokens = 0;
+		int doc = 0;
+		for (int chunk = 1; chunk < numChunks; chunk++) {
+			long chunkEnd = totalTokens * chunk / numChunks;
+			while (doc < data.size() && tokens < chunkEnd) {
+				tokens += data.get(doc).getTokens().getLength();
+				doc++;
+			}
+			chunkStarts[chunk] = doc;
+		}
+		chunkStarts[numChunks] = data.size();
+		
+		return chunkStarts;
+	}
+
 	protected WorkerRunnable makeWorkerRunnable(int offset, int docsPerThread) {
 		
 	    TypeTopicCounts typeTopicCounts = this.typeTopicCounts;
@@ -702,7 +899,9 @@ public class ParallelTopicModel implements Serializable {
 
 	    if (numThreads > 1)    // otherwise, make a copy for the thread
 	    {
-	        typeTopicCounts = new TypeTopicCounts(typeTopicCounts);
+	        if (! sharedCounts) {
+	            typeTopicCounts = new TypeTopicCounts(typeTopicCounts);
+	        }
 	        tokensPerTopic  = Arrays.copyOf(tokensPerTopic, tokensPerTopic.length);
 	    }
 	    
@@ -14,6 +14,11 @@ public class TopicAssignment implements Serializable {
 	public Instance instance;
 	public LabelSequence topicSequence;
 	public Labeling topicDistribution;
+	// the DMR prior of the document, set by DMRTopicModel after each 
+	//  regression and shared by the documents with the same features, 
+	//  or null if it is not cached
+	transient double[] alpha;
+	transient double alphaMax;   // the largest value in alpha
                 
 	public TopicAssignment (Instance instance, LabelSequence topicSequence) {
 		this.instance = instance;
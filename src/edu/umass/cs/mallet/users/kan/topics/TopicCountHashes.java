@@ -0,0 +1,110 @@
+package edu.umass.cs.mallet.users.kan.topics;
+
+import java.util.Arrays;
+
+/** Sparse topic counts, as small hashes from topic to count laid out one
+ *   after the other in a single int[]. The hash at base with mask + 1
+ *   slots holds (count << topicBits | topic) entries, 0 for an empty slot,
+ *   with open addressing and linear probing. It must have at least twice
+ *   as many slots as topics with non-zero counts (see numSlots), so that
+ *   a count is found in about one probe.
+ *
+ *   The type/topic counts use one hash per packed row, so that a count
+ *   is found without a scan, and the word-major sweep one per document.
+ */
+
+public class TopicCountHashes {
+
+	int[] slots;
+	final int topicBits;
+	final int topicMask;
+
+	public TopicCountHashes (int length, int topicBits, int topicMask) {
+		this.slots = new int[length];
+		this.topicBits = topicBits;
+		this.topicMask = topicMask;
+	}
+
+	public TopicCountHashes (TopicCountHashes source) {
+		this.slots = Arrays.copyOf(source.slots, source.slots.length);
+		this.topicBits = source.topicBits;
+		this.topicMask = source.topicMask;
+	}
+
+	/** @return the number of slots of a hash for up to maxTopics topics, a power of 2 */
+	public static int numSlots (int maxTopics) {
+		return Integer.highestOneBit(Math.max(1, 2 * maxTopics - 1)) * 2;
+	}
+
+	/** Makes room for at least length slots, all of them empty */
+	public void clear (int length) {
+		if (slots.length < length) {
+			slots = new int[length];
+		}
+		else {
+			Arrays.fill(slots, 0, length, 0);
+		}
+	}
+
+	public int getCount (int base, int mask, int topic) {
+		return slots[slot(base, mask, topic)] >> topicBits;
+	}
+
+	public void increment (int base, int mask, int topic) {
+		int slot = slot(base, mask, topic);
+		if (slots[slot] == 0) {
+			slots[slot] = (1 << topicBits) + topic;
+		}
+		else {
+			slots[slot] += 1 << topicBits;
+		}
+	}
+
+	/** Stores a (count << topicBits | topic) entry of a topic not in the hash yet */
+	public void set (int base, int mask, int entry) {
+		slots[slot(base, mask, entry & topicMask)] = entry;
+	}
+
+	/** Subtracts one from the non-zero count of a topic. A topic whose count
+	 *   drops to 0 is removed by moving the entries after it in the probe
+	 *   sequence back, as far as their home slots allow. */
+	public void decrement (int base, int mask, int topic) {
+		int slot = slot(base, mask, topic);
+		slots[slot] -= 1 << topicBits;
+		if ((slots[slot] >> topicBits) > 0) {
+			return;
+		}
+
+		int hole = slot - base;
+		int next = (hole + 1) & mask;
+
+		while (slots[base + next] != 0) {
+			int home = home(slots[base + next] & topicMask, mask);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				slots[base + hole] = slots[base + next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		slots[base + hole] = 0;
+	}
+
+	/** @return the topic of a slot, which must not be empty */
+	public int topicAt (int slot) { return slots[slot] & topicMask; }
+
+	/** @return the count of a slot, 0 if it is empty */
+	public int countAt (int slot) { return slots[slot] >> topicBits; }
+
+	/** @return the slot of the topic, or the empty slot where it would go */
+	private int slot (int base, int mask, int topic) {
+		int slot = home(topic, mask);
+		while (slots[base + slot] != 0 && (slots[base + slot] & topicMask) != topic) {
+			slot = (slot + 1) & mask;
+		}
+		return base + slot;
+	}
+
+	private static int home (int topic, int mask) {
+		return (topic * 0x9E3779B9 >>> 16) & mask;
+	}
+}
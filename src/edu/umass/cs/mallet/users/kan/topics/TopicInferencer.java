@@ -24,6 +24,7 @@ public class TopicInferencer implements Serializable {
     
     double smoothingOnlyMass;
     double[] cachedCoefficients;
+    transient DocTopicCounts docTopicCounts;   // reused for every document
     
     public TopicInferencer (TypeTopicCounts typeTopicCounts, int[] tokensPerTopic, Alphabet alphabet,
                             double[] alpha, double beta, double betaSum) {
@@ -44,6 +45,7 @@ public class TopicInferencer implements Serializable {
         this.smoothingOnlyMass = 
             WorkerRunnable.initSmoothingOnlyMassAndCachedCoefficients(
                 this.cachedCoefficients, this.alpha, this.beta, this.betaSum, this.tokensPerTopic);
+        this.docTopicCounts = new DocTopicCounts(numTopics);
         
         random = new Randoms();
     }
@@ -70,8 +72,9 @@ public class TopicInferencer implements Serializable {
         int docLength = tokens.size();
         int[] topics = new int[docLength];
 
-        int[] localTopicCounts = new int[numTopics];
-        int[] localTopicIndex = new int[numTopics];
+        docTopicCounts.clear();
+        int[] localTopicCounts = docTopicCounts.counts;
+        int[] localTopicIndex = docTopicCounts.topics;
         
         int type;
         //int[] currentTypeTopicCounts;
@@ -93,22 +96,11 @@ public class TopicInferencer implements Serializable {
                 //  random initialization.
                 topics[position] = typeTopicCounts.getTypeTopicCount(type, 0);
 
-                localTopicCounts[topics[position]]++;
+                docTopicCounts.increment(topics[position]);
             }
         }
 
-        // Build an array that densely lists the topics that                                                          
-        //  have non-zero counts.                                                                                     
-        int denseIndex = 0;
-        for (int topic = 0; topic < numTopics; topic++) {
-            if (localTopicCounts[topic] != 0) {
-                localTopicIndex[denseIndex] = topic;
-                denseIndex++;
-            }
-        }
-
-        // Record the total number of non-zero topics                                                                 
-        int nonZeroTopics = denseIndex;
+        int denseIndex;
 
         //      Initialize the topic count/beta sampling bucket                                                       
         double topicBetaMass = 0.0;
@@ -116,7 +108,7 @@ public class TopicInferencer implements Serializable {
         // Initialize cached coefficients and the topic/beta                                                          
         //  normalizing constant.                                                                                     
 
-        for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+        for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
             int topic = localTopicIndex[denseIndex];
             int n = localTopicCounts[topic];
 
@@ -157,38 +149,12 @@ public class TopicInferencer implements Serializable {
                 topicBetaMass -= beta * localTopicCounts[oldTopic] /
                     (tokensPerTopic[oldTopic] + betaSum);
                 
-                // Decrement the local doc/topic counts                                                                   
+                // Decrement the local doc/topic counts (and drop the 
+                //  old topic from the non-zero topics if it reaches 0)
                 
-                localTopicCounts[oldTopic]--;
+                docTopicCounts.decrement(oldTopic);
                 //assert(localTopicCounts[oldTopic] >= 0);
 
-                // Maintain the dense index, if we are deleting                                                           
-                //  the old topic                                                                                         
-                if (localTopicCounts[oldTopic] == 0) {
-
-                    // First get to the dense location associated with                                                    
-                    //  the old topic.                                                                                    
-
-                    denseIndex = 0;
-
-                    // We know it's in there somewhere, so we don't                                                       
-                    //  need bounds checking.                                                                             
-                    while (localTopicIndex[denseIndex] != oldTopic) {
-                        denseIndex++;
-                    }
-
-                    // shift all remaining dense indices to the left.                                                     
-                    while (denseIndex < nonZeroTopics) {
-                        if (denseIndex < localTopicIndex.length - 1) {
-                        localTopicIndex[denseIndex] =
-                            localTopicIndex[denseIndex + 1];
-                        }
-                        denseIndex++;
-                    }
-
-                    nonZeroTopics --;
-                } // finished maintaining local topic index
-
                 topicBetaMass += beta * localTopicCounts[oldTopic] /
                     (tokensPerTopic[oldTopic] + betaSum);
                 
@@ -227,7 +193,7 @@ public class TopicInferencer implements Serializable {
 
                         sample /= beta;
 
-                        for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                        for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
                             int topic = localTopicIndex[denseIndex];
 
                             sample -= localTopicCounts[topic] /
@@ -269,31 +235,9 @@ public class TopicInferencer implements Serializable {
                 topicBetaMass -= beta * localTopicCounts[newTopic] /
                     (tokensPerTopic[newTopic] + betaSum);
 
-                localTopicCounts[newTopic]++;
-
-                // If this is a new topic for this document,                                                              
-                //  add the topic to the dense index.                                                                     
-                if (localTopicCounts[newTopic] == 1) {
-
-                    // First find the point where we                                                                      
-                    //  should insert the new topic by going to                                                           
-                    //  the end (which is the only reason we're keeping                                                   
-                    //  track of the number of non-zero                                                                   
-                    //  topics) and working backwards                                                                     
-
-                    denseIndex = nonZeroTopics;
-
-                    while (denseIndex > 0 &&
-                           localTopicIndex[denseIndex - 1] > newTopic) {
-                        
-                        localTopicIndex[denseIndex] =
-                            localTopicIndex[denseIndex - 1];
-                        denseIndex--;
-                    }
-
-                    localTopicIndex[denseIndex] = newTopic;
-                    nonZeroTopics++;
-                }
+                // If this is a new topic for this document, this
+                //  also adds the topic to the non-zero topics.
+                docTopicCounts.increment(newTopic);
 
                 //  update the coefficients for the non-zero topics                                                       
                 cachedCoefficients[newTopic] =
@@ -318,7 +262,7 @@ public class TopicInferencer implements Serializable {
 
         //  Clean up our mess: reset the coefficients to values with only
         //  smoothing. The next doc will update its own non-zero topics...
-        for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+        for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
             int topic = localTopicIndex[denseIndex];
 
             cachedCoefficients[topic] =
@@ -457,6 +401,8 @@ public class TopicInferencer implements Serializable {
 
         smoothingOnlyMass = in.readDouble();
         cachedCoefficients = (double[]) in.readObject();
+
+        docTopicCounts = new DocTopicCounts(numTopics);
     }
 
     public static TopicInferencer read (File f) throws Exception {
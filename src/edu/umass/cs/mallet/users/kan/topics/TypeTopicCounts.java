@@ -18,6 +18,7 @@ import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import cc.mallet.types.Alphabet;
@@ -34,7 +35,20 @@ import cc.mallet.util.MalletLogger;
  *      
  *       is an attempt to abstract out the bitwise operations required to store type/topic counts 
  *       in a compact way into a separate class without sacrificing performance.
+ *
+ *       Most types keep the packed (count << topicBits | topic) array sorted by count. The frequent
+ *       types, which account for most of the tokens, get a dense row instead (see denseTypeFactor):
+ *       the count of every topic, the non-zero topics sorted by count and the position of each topic
+ *       in that list, so that a topic is found without a scan and reordered with a single swap.
+ *
+ *       A packed count only has 31 - topicBits bits (about 2M with 1000 topics). The dense rows keep
+ *       plain int counts, so a type whose total is above maxPackedCount always gets a dense row,
+ *       however it compares with denseTypeFactor, and none of its counts can overflow.
  *       
+ *       The rows of all the types are laid out one after the other in a single int[] arena,
+ *       at typeOffsets[type] with typeLengths[type] entries. The layout never changes after
+ *       construction, so the per thread copies share it and only copy the arena.
+ *
  *       @author jkan
  **/
 public class TypeTopicCounts implements Serializable {
@@ -44,15 +58,28 @@ public class TypeTopicCounts implements Serializable {
     // These values are used to encode type/topic counts as
 	//  count/topic pairs in a single int.
 	
-    private static final long serialVersionUID = -100L;
+    private static final long serialVersionUID = -102L;
+
+    /** Types that occur at least denseTypeFactor * numTopics times get a dense row **/
+    static int                denseTypeFactor = 4;
 
     protected int             numTypes;
     protected int             numTopics;
 
     protected int             topicMask;
     protected int             topicBits;
-
-    protected int[][]         typeTopicCounts;         // indexed by <feature index, topic index>
+    protected int             maxPackedCount;          // the largest count a packed entry can hold
+
+    protected int[]           arena;                   // the rows of all the types
+    protected int[]           typeOffsets;             // where the row of each type starts in the arena
+    protected int[]           typeLengths;             // the number of arena entries of each type
+    protected boolean[]       denseTypes;
+
+    // Layout of a dense row: the number of non-zero topics, then the count of each topic,
+    //  then the non-zero topics in descending order of count, then the position of each
+    //  topic in that order (only meaningful while its count is not zero).
+    protected int             sortedOffset;
+    protected int             positionOffset;
     private double[]          topicTermScores;
 
     /** The number of times each type appears in the corpus **/
@@ -62,6 +89,19 @@ public class TypeTopicCounts implements Serializable {
 
     TopicProgressLogger       topicLogger;
 
+    /** The number of locks the types are striped over when the counts are shared by the workers **/
+    static int                numLockStripes = 1024;
+    
+    // null unless shareBetweenThreads() was called
+    protected transient ReentrantLock[] typeLocks;
+    protected transient int   lockMask;
+
+    // A hash of the packed entries of each packed row by topic, so that getCount does not scan
+    //  the row. null unless indexPackedRows() was called.
+    protected transient TopicCountHashes packedIndex;
+    protected transient int[] indexOffsets;            // where the hash of each type starts in packedIndex
+    protected transient int[] indexMasks;              // the number of slots of the hash of each type, minus 1
+
     
 	public TypeTopicCounts(int numTypes, int numTopics, InstanceList training) {
 		
@@ -78,20 +118,40 @@ public class TypeTopicCounts implements Serializable {
             topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
             topicBits = Integer.bitCount(topicMask);
         }
+        maxPackedCount = Integer.MAX_VALUE >> topicBits;
 		
 		this.typeTotals = calcTypeTotals(numTypes, training);
 
-		this.typeTopicCounts = new int[numTypes][];
+		this.typeOffsets = new int[numTypes];
+		this.typeLengths = new int[numTypes];
+		this.denseTypes = new boolean[numTypes];
+		setDenseOffsets();
 
         this.maxTypeCount = 0;
 
 		// Allocate enough space so that we never have to worry about
 		//  overflows: either the number of topics or the number of times
 		//  the type occurs.
+        long arenaLength = 0;
 		for (int type = 0; type < numTypes; type++) {
             if (typeTotals[type] > maxTypeCount) { maxTypeCount = typeTotals[type]; }
-			typeTopicCounts[type] = new int[ Math.min(numTopics, typeTotals[type]) ];
+            if ((typeTotals[type] > 0 && typeTotals[type] >= (long) denseTypeFactor * numTopics)
+                    || typeTotals[type] > maxPackedCount) {
+                denseTypes[type] = true;
+                typeLengths[type] = 1 + 3 * numTopics;
+            }
+            else {
+                typeLengths[type] = Math.min(numTopics, typeTotals[type]);
+            }
+            typeOffsets[type] = (int) arenaLength;
+            arenaLength += typeLengths[type];
+
+            if (arenaLength > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("The type/topic counts of " + numTypes + " types and "
+                        + numTopics + " topics do not fit in a single array");
+            }
 		}
+		this.arena = new int[(int) arenaLength];
 
 		this.topicTermScores = new double[this.numTopics];
 	}
@@ -109,18 +169,122 @@ public class TypeTopicCounts implements Serializable {
 		
 		this.topicMask = source.topicMask;
 		this.topicBits = source.topicBits;
+		this.maxPackedCount = source.maxPackedCount;
+		
+		// the layout is never modified, so it is shared
+		this.typeOffsets = source.typeOffsets;
+		this.typeLengths = source.typeLengths;
+		this.denseTypes  = source.denseTypes;
+		setDenseOffsets();
 		
         this.topicTermScores = Arrays.copyOf(source.topicTermScores, source.topicTermScores.length);
-        this.typeTopicCounts = new int[source.typeTopicCounts.length][];
+        this.arena = Arrays.copyOf(source.arena, source.arena.length);
 		
-		for (int type = 0; type < source.typeTopicCounts.length; type++) {
-			this.typeTopicCounts[type] = Arrays.copyOf(source.typeTopicCounts[type], source.typeTopicCounts[type].length);
-		}
+        if (source.packedIndex != null) {
+            this.indexOffsets = source.indexOffsets;
+            this.indexMasks   = source.indexMasks;
+            this.packedIndex  = new TopicCountHashes(source.packedIndex);
+        }
 		
-        this.typeTotals   = Arrays.copyOf(source.typeTotals, source.typeTotals.length);
+        this.typeTotals   = source.typeTotals;
         this.maxTypeCount = source.maxTypeCount;
 	}
 
+
+	/**
+	 * Lets several workers sample against these counts at the same time. The 
+	 * types are striped over a fixed number of locks, and a worker holds the 
+	 * lock of a type while it reads or changes the row of the type.
+	 **/
+	public void shareBetweenThreads() {
+		int numStripes = Integer.highestOneBit(Math.max(1, Math.min(numLockStripes, numTypes)));
+		typeLocks = new ReentrantLock[numStripes];
+		for (int stripe = 0; stripe < numStripes; stripe++) {
+			typeLocks[stripe] = new ReentrantLock();
+		}
+		lockMask = numStripes - 1;
+	}
+
+	public void lockType(int type) {
+		if (typeLocks != null) {
+			typeLocks[type & lockMask].lock();
+		}
+	}
+
+	public void unlockType(int type) {
+		if (typeLocks != null) {
+			typeLocks[type & lockMask].unlock();
+		}
+	}
+
+
+	/**
+	 * Keeps a hash of the counts of every packed row by topic from now on, so
+	 * that getCount is a lookup for every type, not only for the dense ones.
+	 * The Metropolis-Hastings sampler reads a few counts of a type per step.
+	 * The copies made after this call have the hash as well.
+	 **/
+	public void indexPackedRows() {
+		if (packedIndex != null) {
+			return;
+		}
+		indexOffsets = new int[numTypes];
+		indexMasks   = new int[numTypes];
+		
+		long indexLength = 0;
+		for (int type = 0; type < numTypes; type++) {
+			indexOffsets[type] = (int) indexLength;
+			if (! denseTypes[type] && typeLengths[type] > 0) {
+				int numSlots = TopicCountHashes.numSlots(typeLengths[type]);
+				indexMasks[type] = numSlots - 1;
+				indexLength += numSlots;
+			}
+			if (indexLength > Integer.MAX_VALUE - 8) {
+				throw new IllegalArgumentException("The packed row index of " + numTypes + " types and "
+						+ numTopics + " topics does not fit in a single array");
+			}
+		}
+		packedIndex = new TopicCountHashes((int) indexLength, topicBits, topicMask);
+		rebuildPackedIndex();
+	}
+
+
+	private void rebuildPackedIndex() {
+		packedIndex.clear(packedIndex.slots.length);
+		
+		for (int type = 0; type < numTypes; type++) {
+			if (denseTypes[type]) {
+				continue;
+			}
+			int offset = typeOffsets[type];
+			for (int index = 0; index < typeLengths[type] && arena[offset + index] > 0; index++) {
+				packedIndex.set(indexOffsets[type], indexMasks[type], arena[offset + index]);
+			}
+		}
+	}
+
+
+	/** Adds one to the indexed count of a topic of a packed type, if there is an index **/
+	private void incrementIndex(int type, int topic) {
+		if (packedIndex != null) {
+			packedIndex.increment(indexOffsets[type], indexMasks[type], topic);
+		}
+	}
+
+
+	/** Subtracts one from the indexed count of a topic of a packed type, if there is an index **/
+	private void decrementIndex(int type, int topic) {
+		if (packedIndex != null) {
+			packedIndex.decrement(indexOffsets[type], indexMasks[type], topic);
+		}
+	}
+
+
+	private void setDenseOffsets() {
+		sortedOffset   = 1 + numTopics;
+		positionOffset = 1 + 2 * numTopics;
+	}
+
 	
     /**
      * calculates the total number of occurrences of each word type across documents
@@ -152,15 +316,30 @@ public class TypeTopicCounts implements Serializable {
      */
     public void clearCounts() {
 
-		for (int[] topicCounts : typeTopicCounts) 
+		for (int type = 0; type < numTypes; type++) 
 		{
-			int position = 0;
-			while (position < topicCounts.length && 
-				   topicCounts[position] > 0) {
-				topicCounts[position] = 0;
+			int offset = typeOffsets[type];
+			
+			if (denseTypes[type]) {
+				for (int position = 0; position < arena[offset]; position++) {
+					arena[offset + 1 + arena[offset + sortedOffset + position]] = 0;
+				}
+				arena[offset] = 0;
+				continue;
+			}
+			
+			int end      = offset + typeLengths[type];
+			int position = offset;
+			while (position < end &&
+				   arena[position] > 0) {
+				arena[position] = 0;
 				position++;
 			}
 		}
+		
+		if (packedIndex != null) {
+			packedIndex.clear(packedIndex.slots.length);
+		}
 	}
 		
 
@@ -173,8 +352,15 @@ public class TypeTopicCounts implements Serializable {
 		//  by the numeric value of the int guarantees that
 		//  higher counts will be before the lower counts.
 		
-		int[] currentTypeTopicCounts = typeTopicCounts[ type ];
+		int offset = typeOffsets[type];
 
+		if (denseTypes[type]) {
+			incrementDense(offset, topic);
+			return;
+		}
+		
+		incrementIndex(type, topic);
+		
 		// Start by assuming that the array is either empty
 		//  or is in sorted (descending) order.
 		
@@ -183,33 +369,33 @@ public class TypeTopicCounts implements Serializable {
 		//  to ensure that it is not larger than its left neighbor.
 		
 		int index = 0;
-		int currentTopic = currentTypeTopicCounts[index] & topicMask;
+		int currentTopic = arena[offset + index] & topicMask;
 		int currentValue;
 		
-		while (currentTypeTopicCounts[index] > 0 && currentTopic != topic) {
+		while (arena[offset + index] > 0 && currentTopic != topic) {
 			index++;
-			if (index == currentTypeTopicCounts.length) {
+			if (index == typeLengths[type]) {
 				System.out.println("overflow on type " + type);
 			}
-			currentTopic = currentTypeTopicCounts[index] & topicMask;
+			currentTopic = arena[offset + index] & topicMask;
 		}
-		currentValue = currentTypeTopicCounts[index] >> topicBits;
+		currentValue = arena[offset + index] >> topicBits;
 		
 		if (currentValue == 0) {
 			// new value is 1, so we don't have to worry about sorting
 			//  (except by topic suffix, which doesn't matter)
 			
-			currentTypeTopicCounts[index] =
+			arena[offset + index] =
 				(1 << topicBits) + topic;
 		}
 		else {
-			currentTypeTopicCounts[index] =
+			arena[offset + index] =
 				((currentValue + 1) << topicBits) + topic;
 			
 			// Now ensure that the array is still sorted by 
 			//  bubbling this value up.
 			
-			bubbleUp(currentTypeTopicCounts, index);
+			bubbleUp(offset, offset + index);
 		}
 	}
 
@@ -218,61 +404,186 @@ public class TypeTopicCounts implements Serializable {
 	 * Ensure that the array is still sorted by
 	 * bubbling this value up.
 	 * 
-	 * @param index	the index containing the value to bubble up
+	 * @param offset	the start of the row in the arena
+	 * @param index	the arena index containing the value to bubble up
 	 **/
-	private void bubbleUp(int[] currentTypeTopicCounts, int index) {
+	private void bubbleUp(int offset, int index) {
 		
 		// Now ensure that the array is still sorted by 
 		//  bubbling this value up.
 		
-		while (index > 0 &&
-			   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
-			int temp = currentTypeTopicCounts[index];
-			currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
-			currentTypeTopicCounts[index - 1] = temp;
+		while (index > offset &&
+			   arena[index] > arena[index - 1]) {
+			int temp = arena[index];
+			arena[index] = arena[index - 1];
+			arena[index - 1] = temp;
 			
 			index--;
 		}
 	}
 
+	
+	/**
+	 * Adds one to the count of a topic in a dense row. Before the increment the
+	 * topic is swapped with the first topic that has the same count, so that
+	 * the row is still sorted afterwards.
+	 **/
+	private void incrementDense(int offset, int topic) {
+		int[] row = arena;
+		int count = row[offset + 1 + topic];
+		
+		if (count == 0) {
+			// a count of 1 is the lowest non-zero count, so it goes at the end
+			int position = row[offset]++;
+			row[offset + sortedOffset + position]  = topic;
+			row[offset + positionOffset + topic] = position;
+		}
+		else {
+			int position = row[offset + positionOffset + topic];
+			
+			// binary search for the first position with this count
+			int first = 0;
+			int last  = position;
+			while (first < last) {
+				int middle = (first + last) >>> 1;
+				if (row[offset + 1 + row[offset + sortedOffset + middle]] > count) {
+					first = middle + 1;
+				}
+				else {
+					last = middle;
+				}
+			}
+			swapDense(offset, position, first);
+		}
+		row[offset + 1 + topic] = count + 1;
+	}
+
+	
+	/**
+	 * Subtracts one from the count of a topic in a dense row, swapping it
+	 * with the last topic that has the same count first.
+	 **/
+	private void decrementDense(int offset, int topic) {
+		int[] row = arena;
+		int count    = row[offset + 1 + topic];
+		int position = row[offset + positionOffset + topic];
+		
+		// binary search for the last position with this count
+		int first = position;
+		int last  = row[offset] - 1;
+		while (first < last) {
+			int middle = (first + last + 1) >>> 1;
+			if (row[offset + 1 + row[offset + sortedOffset + middle]] < count) {
+				last = middle - 1;
+			}
+			else {
+				first = middle;
+			}
+		}
+		swapDense(offset, position, first);
+		
+		row[offset + 1 + topic] = count - 1;
+		if (count == 1) {
+			// nothing has a lower count, so the topic was moved to the end
+			row[offset]--;
+		}
+	}
+
+	
+	private void swapDense(int offset, int position, int otherPosition) {
+		if (position == otherPosition) {
+			return;
+		}
+		int[] row = arena;
+		int topic      = row[offset + sortedOffset + position];
+		int otherTopic = row[offset + sortedOffset + otherPosition];
+		
+		row[offset + sortedOffset + position]      = otherTopic;
+		row[offset + sortedOffset + otherPosition] = topic;
+		row[offset + positionOffset + otherTopic]  = position;
+		row[offset + positionOffset + topic]       = otherPosition;
+	}
+
+	
+	/**
+	 * Rebuilds the order of the non-zero topics of a dense row from the counts.
+	 **/
+	private void sortDense(int offset) {
+		int[] row = arena;
+		int nonZero = row[offset];
+		long[] keys = new long[nonZero];
+		
+		for (int position = 0; position < nonZero; position++) {
+			int topic = row[offset + sortedOffset + position];
+			keys[position] = ((long) row[offset + 1 + topic] << 32) | topic;
+		}
+		Arrays.sort(keys);
+		
+		for (int position = 0; position < nonZero; position++) {
+			int topic = (int) keys[nonZero - 1 - position];
+			row[offset + sortedOffset + position] = topic;
+			row[offset + positionOffset + topic]  = position;
+		}
+	}
+
 		
 	public void addCounts(TypeTopicCounts sourceTypeTopicCounts) {
 		
-		for (int type = 0; type < typeTopicCounts.length; type++) {
+		int[] sourceArena = sourceTypeTopicCounts.arena;
+
+		for (int type = 0; type < numTypes; type++) {
 				
 			// Here the source is the individual thread counts,
 			//  and the target is the global counts.
 	
-			int[] sourceCounts = sourceTypeTopicCounts.typeTopicCounts[type];
-			int[] targetCounts = typeTopicCounts[type];
+			// Both share the same layout
+			int offset = typeOffsets[type];
+			int length = typeLengths[type];
 	
+			if (denseTypes[type]) {
+				for (int position = 0; position < sourceArena[offset]; position++) {
+					int topic = sourceArena[offset + sortedOffset + position];
+					if (arena[offset + 1 + topic] == 0) {
+						int targetPosition = arena[offset]++;
+						arena[offset + sortedOffset + targetPosition] = topic;
+					}
+					arena[offset + 1 + topic] += sourceArena[offset + 1 + topic];
+				}
+				sortDense(offset);
+				continue;
+			}
+			
 			int sourceIndex = 0;
-			while (sourceIndex < sourceCounts.length &&
-				   sourceCounts[sourceIndex] > 0) {
+			while (sourceIndex < length &&
+				   sourceArena[offset + sourceIndex] > 0) {
 				
-				int topic = sourceCounts[sourceIndex] & topicMask;
-				int count = sourceCounts[sourceIndex] >> topicBits;
+				int topic = sourceArena[offset + sourceIndex] & topicMask;
+				int count = sourceArena[offset + sourceIndex] >> topicBits;
 	
 				int targetIndex = 0;
-				int currentTopic = targetCounts[targetIndex] & topicMask;
+				int currentTopic = arena[offset + targetIndex] & topicMask;
 				int currentCount;
 				
-				while (targetCounts[targetIndex] > 0 && currentTopic != topic) {
+				while (arena[offset + targetIndex] > 0 && currentTopic != topic) {
 					targetIndex++;
-					if (targetIndex == targetCounts.length) {
+					if (targetIndex == length) {
 						System.out.println("overflow in merging on type " + type);
 					}
-					currentTopic = targetCounts[targetIndex] & topicMask;
+					currentTopic = arena[offset + targetIndex] & topicMask;
 				}
-				currentCount = targetCounts[targetIndex] >> topicBits;
+				currentCount = arena[offset + targetIndex] >> topicBits;
 				
-				targetCounts[targetIndex] =
+				arena[offset + targetIndex] =
 					((currentCount + count) << topicBits) + topic;
 				
-				bubbleUp(targetCounts, targetIndex);
+				bubbleUp(offset, offset + targetIndex);
 				sourceIndex++;
 			}
 		}
+		
+		if (packedIndex != null) {
+			rebuildPackedIndex();
+		}
 	}
 	
 	
@@ -284,14 +595,11 @@ public class TypeTopicCounts implements Serializable {
 
 		for (int type = 0; type < numTypes; type++) {
 			
-			int[] targetCounts = typeTopicCounts[type];
+			int numEntries = numEntries(type);
 			
-			int index = 0;
 			int count = 0;
-			while (index < targetCounts.length &&
-				   targetCounts[index] > 0) {
-				count += targetCounts[index] >> topicBits;
-				index++;
+			for (int index = 0; index < numEntries; index++) {
+				count += countAt(type, index);
 			}
 			
 			if (count != typeTotals[type]) {
@@ -304,26 +612,80 @@ public class TypeTopicCounts implements Serializable {
 	
 	public void setCounts(TypeTopicCounts source) {
 	    
-		for (int type = 0; type < typeTopicCounts.length; type++) {
-			int[] targetCounts = this.typeTopicCounts[type];
-			int[] sourceCounts = source.typeTopicCounts[type]; //getTopicCountsForType(type);
-			
-			int index = 0;
-			while (index < sourceCounts.length) {
-				
-				if (sourceCounts[index] != 0) {
-					targetCounts[index] = sourceCounts[index];
-				}
-				else if (targetCounts[index] != 0) {
-					targetCounts[index] = 0;
-				}
-				else {
-					break;
-				}
-				
-				index++;
+		// Both share the same layout, so this is a single copy
+		System.arraycopy(source.arena, 0, arena, 0, arena.length);
+		
+		if (packedIndex != null) {
+			if (source.packedIndex != null) {
+				System.arraycopy(source.packedIndex.slots, 0, packedIndex.slots, 0, packedIndex.slots.length);
+			}
+			else {
+				rebuildPackedIndex();
+			}
+		}
+	}
+	
+	
+	private IllegalStateException missingCount(int type, int topic) {
+		return new IllegalStateException("Type " + type + " has no count for topic " + topic);
+	}
+	
+	
+	/**
+	 * Moves one token of a type from oldTopic to newTopic, keeping the row
+	 * sorted. This is how the changes made by the other workers are replayed.
+	 **/
+	public void moveTypeTopicCount(int type, int oldTopic, int newTopic) {
+		decrementTypeTopicCount(type, oldTopic);
+		initializeTypeTopicCount(type, newTopic);
+	}
+	
+	
+	/**
+	 * Subtracts one from the count of a topic of a type, which must be non-zero.
+	 * 
+	 * @throws IllegalStateException if the count is zero, so that a change
+	 *         replayed on the wrong counts does not spill into the next row
+	 **/
+	public void decrementTypeTopicCount(int type, int topic) {
+		
+		int offset = typeOffsets[type];
+		
+		if (denseTypes[type]) {
+			if (arena[offset + 1 + topic] == 0) {
+				throw missingCount(type, topic);
 			}
-			//System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
+			decrementDense(offset, topic);
+			return;
+		}
+		
+		int index = offset;
+		int lastIndex = offset + typeLengths[type] - 1;
+		while (index <= lastIndex && arena[index] > 0 && (arena[index] & topicMask) != topic) {
+			index++;
+		}
+		if (index > lastIndex || arena[index] == 0) {
+			throw missingCount(type, topic);
+		}
+		
+		decrementIndex(type, topic);
+		
+		int currentValue = (arena[index] >> topicBits) - 1;
+		if (currentValue == 0) {
+			arena[index] = 0;
+		}
+		else {
+			arena[index] = (currentValue << topicBits) + topic;
+		}
+		
+		// Shift the reduced value to the right, if necessary.
+		while (index < lastIndex &&
+			   arena[index] < arena[index + 1]) {
+			int temp = arena[index];
+			arena[index] = arena[index + 1];
+			arena[index + 1] = temp;
+			
+			index++;
 		}
 	}
 	
@@ -344,15 +706,20 @@ public class TypeTopicCounts implements Serializable {
         int   index = 0;
         int   currentTopic, currentValue;
         
-        int[] currentTypeTopicCounts = typeTopicCounts[type];
+        int   offset = typeOffsets[type];
+        int   length = typeLengths[type];
 
         double   topicTermMass = 0.0;
         
-        while (index < currentTypeTopicCounts.length && 
-               currentTypeTopicCounts[index] > 0) {
+        if (denseTypes[type]) {
+            return calculateDenseTopicTermScores(offset, cachedCoefficients, topicTermScores);
+        }
+        
+        while (index < length &&
+               arena[offset + index] > 0) {
             
-            currentTopic = currentTypeTopicCounts[index] & topicMask;
-            currentValue = currentTypeTopicCounts[index] >> topicBits;
+            currentTopic = arena[offset + index] & topicMask;
+            currentValue = arena[offset + index] >> topicBits;
 
             //this.debugPrintTypeTopicCounts(System.out, type, oldTopic, currentTopic);
             
@@ -367,6 +734,26 @@ public class TypeTopicCounts implements Serializable {
     }
 
     
+    private double calculateDenseTopicTermScores(
+            int offset,
+            double[] cachedCoefficients, 
+            double[] topicTermScores)
+    {
+        int[]    row           = arena;
+        int      nonZero       = row[offset];
+        double   topicTermMass = 0.0;
+        
+        for (int position = 0; position < nonZero; position++) {
+            int topic = row[offset + sortedOffset + position];
+            
+            double score = cachedCoefficients[topic] * row[offset + 1 + topic];
+            
+            topicTermMass += score;
+            topicTermScores[position] = score;
+        }
+        return topicTermMass;
+    }
+
 	
 	/**
 	 * Now go over the type/topic counts, decrementing where appropriate, and 
@@ -381,26 +768,47 @@ public class TypeTopicCounts implements Serializable {
 	public double calculateTopicTermScoresWhileDecrementingOldTopic(
 			int type, int oldTopic, 
 			double[] cachedCoefficients)
+	{
+		return calculateTopicTermScoresWhileDecrementingOldTopic(type, oldTopic, cachedCoefficients, this.topicTermScores);
+	}
+	
+	
+	/**
+	 * As above, but the scores go to the caller's array, which updateTopicInTermMass
+	 * must then be given. Workers that share the counts each need their own.
+	 **/
+	public double calculateTopicTermScoresWhileDecrementingOldTopic(
+			int type, int oldTopic, 
+			double[] cachedCoefficients,
+			double[] topicTermScores)
 	{
 		int   index = 0;
 		int   currentTopic, currentValue;
 		
-		int[] currentTypeTopicCounts = typeTopicCounts[type];
+		int   offset = typeOffsets[type];
+		int   length = typeLengths[type];
 
+		if (denseTypes[type]) {
+			decrementDense(offset, oldTopic);
+			return calculateDenseTopicTermScores(offset, cachedCoefficients, topicTermScores);
+		}
+		
 		boolean alreadyDecremented = false;
 
 		double   topicTermMass = 0.0;
 		
-		while (index < currentTypeTopicCounts.length && 
-			   currentTypeTopicCounts[index] > 0) {
+		while (index < length &&
+			   arena[offset + index] > 0) {
 			
-			currentTopic = currentTypeTopicCounts[index] & topicMask;
-			currentValue = currentTypeTopicCounts[index] >> topicBits;
+			currentTopic = arena[offset + index] & topicMask;
+			currentValue = arena[offset + index] >> topicBits;
 
 			//this.debugPrintTypeTopicCounts(System.out, type, oldTopic, currentTopic);
 			
 			if (! alreadyDecremented && currentTopic == oldTopic) {
 
+				decrementIndex(type, oldTopic);
+
 				// We're decrementing and adding up the 
 				//  sampling weights at the same time, but
 				//  decrementing may require us to reorder
@@ -409,21 +817,22 @@ public class TypeTopicCounts implements Serializable {
 
 				currentValue --;
 				if (currentValue == 0) {
-					currentTypeTopicCounts[index] = 0;
+					arena[offset + index] = 0;
 				}
 				else {
-					currentTypeTopicCounts[index] =
+					arena[offset + index] =
 						(currentValue << topicBits) + oldTopic;
 				}
 				
 				// Shift the reduced value to the right, if necessary.
 
-				int subIndex = index;
-				while (subIndex < currentTypeTopicCounts.length - 1 && 
-					   currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
-					int temp = currentTypeTopicCounts[subIndex];
-					currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
-					currentTypeTopicCounts[subIndex + 1] = temp;
+				int subIndex = offset + index;
+				int lastIndex = offset + length - 1;
+				while (subIndex < lastIndex &&
+					   arena[subIndex] < arena[subIndex + 1]) {
+					int temp = arena[subIndex];
+					arena[subIndex] = arena[subIndex + 1];
+					arena[subIndex + 1] = temp;
 					
 					subIndex++;
 				}
@@ -444,7 +853,59 @@ public class TypeTopicCounts implements Serializable {
 	}
 	
 	
+	/**
+	 * As above, for a document with its own alpha (DMR): rather than from a
+	 * cached coefficient, the score of topic t is computed as
+	 * count * (alpha[t] + docCounts[t]) * inverseDenominators[t], where the
+	 * inverse denominators are 1 / (tokensPerTopic[t] + betaSum), so that
+	 * nothing has to be set up over all the topics for each document.
+	 **/
+	public double calculateTopicTermScoresWhileDecrementingOldTopic(
+			int type, int oldTopic, 
+			double[] alpha, int[] docCounts, double[] inverseDenominators,
+			double[] topicTermScores)
+	{
+		decrementTypeTopicCount(type, oldTopic);
+		
+		int      offset        = typeOffsets[type];
+		double   topicTermMass = 0.0;
+		
+		if (denseTypes[type]) {
+			int nonZero = arena[offset];
+			
+			for (int position = 0; position < nonZero; position++) {
+				int topic = arena[offset + sortedOffset + position];
+				
+				double score = arena[offset + 1 + topic] * 
+					(alpha[topic] + docCounts[topic]) * inverseDenominators[topic];
+				
+				topicTermMass += score;
+				topicTermScores[position] = score;
+			}
+			return topicTermMass;
+		}
+		
+		int length = typeLengths[type];
+		
+		for (int index = 0; index < length && arena[offset + index] > 0; index++) {
+			int currentTopic = arena[offset + index] & topicMask;
+			int currentValue = arena[offset + index] >> topicBits;
+			
+			double score = currentValue * 
+				(alpha[currentTopic] + docCounts[currentTopic]) * inverseDenominators[currentTopic];
+			
+			topicTermMass += score;
+			topicTermScores[index] = score;
+		}
+		return topicTermMass;
+	}
+	
+	
 	public int updateTopicInTermMass(int type, double sample) {
+		return updateTopicInTermMass(type, sample, this.topicTermScores);
+	}
+	
+	public int updateTopicInTermMass(int type, double sample, double[] topicTermScores) {
 	    
 		int i = -1;
 		while (sample > 0) {
@@ -452,37 +913,58 @@ public class TypeTopicCounts implements Serializable {
 			sample -= topicTermScores[i];
 		}
 
-		int[] currentTypeTopicCounts = typeTopicCounts[type];
+		int offset = typeOffsets[type];
 		
-		int newTopic     = currentTypeTopicCounts[i] & topicMask;
-		int currentValue = currentTypeTopicCounts[i] >> topicBits;
+		if (denseTypes[type]) {
+			int newTopic = arena[offset + sortedOffset + i];
+			
+	        if (topicLogger != null)
+	            topicLogger.updateTopicInTermMass(this, type, newTopic);
+			
+			incrementDense(offset, newTopic);
+			return newTopic;
+		}
+		
+		int newTopic     = arena[offset + i] & topicMask;
+		int currentValue = arena[offset + i] >> topicBits;
 
         if (topicLogger != null)
             topicLogger.updateTopicInTermMass(this, type, newTopic);
 		
-		currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
+		arena[offset + i] = ((currentValue + 1) << topicBits) + newTopic;
+		incrementIndex(type, newTopic);
 
 		// Bubble the new value up, if necessary
 		
-		bubbleUp(currentTypeTopicCounts, i);
+		bubbleUp(offset, offset + i);
 		return newTopic;
 	}
 
 	public void updateTopicInSmoothingMass(int type, int newTopic, boolean inBetaMass) {
 	    
-		int[] currentTypeTopicCounts = typeTopicCounts[type];
+		int offset = typeOffsets[type];
+		
+		if (denseTypes[type]) {
+			incrementDense(offset, newTopic);
+			
+	        if (topicLogger != null)
+	            topicLogger.updateTopicInSmoothingMass(this, type, newTopic, inBetaMass);
+			return;
+		}
+		
+		incrementIndex(type, newTopic);
 		
 		// Move to the position for the new topic,
 		//  which may be the first empty position if this
 		//  is a new topic for this word.
 		
 		int index = 0;
-		while (currentTypeTopicCounts[index] > 0 &&
-			   (currentTypeTopicCounts[index] & topicMask) != newTopic) {
+		while (arena[offset + index] > 0 &&
+			   (arena[offset + index] & topicMask) != newTopic) {
 			index++;
 		}
 		
-		if (index == currentTypeTopicCounts.length)	// only print if we've filled up the entire topic array (?)
+		if (index == typeLengths[type])	// only print if we've filled up the entire topic array (?)
             debugPrintNewTopic(type, newTopic);     //   this is probably an error condition
             //debugPrintTypeTopicCounts(System.out, 0, "new topic:", type, "", -1, newTopic);
 			//debugPrintTypeTopicCounts(System.out, 0, "new topic:", type, strType, -1, newTopic);
@@ -490,16 +972,16 @@ public class TypeTopicCounts implements Serializable {
 		// index should now be set to the position of the new topic,
 		//  which may be an empty cell at the end of the list.
 
-		if (currentTypeTopicCounts[index] == 0) {
+		if (arena[offset + index] == 0) {
 			// inserting a new topic, guaranteed to be in
 			//  order w.r.t. count, if not topic.
-			currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
+			arena[offset + index] = (1 << topicBits) + newTopic;
 		}
 		else {
-			int currentValue = currentTypeTopicCounts[index] >> topicBits;
-			currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
+			int currentValue = arena[offset + index] >> topicBits;
+			arena[offset + index] = ((currentValue + 1) << topicBits) + newTopic;
 
-			bubbleUp(currentTypeTopicCounts, index);
+			bubbleUp(offset, offset + index);
 		}
 		
         if (topicLogger != null)
@@ -507,14 +989,84 @@ public class TypeTopicCounts implements Serializable {
 	}
 
 
+	/**
+	 * @return the number of topics with a non-zero count for the type
+	 **/
+	int numEntries(int type) {
+		int offset = typeOffsets[type];
+		
+		if (denseTypes[type]) {
+			return arena[offset];
+		}
+		int index = 0;
+		while (index < typeLengths[type] && arena[offset + index] > 0) {
+			index++;
+		}
+		return index;
+	}
+
+	
+	/**
+	 * @return the topic of the index-th entry of the type, in descending order of count
+	 **/
+	int topicAt(int type, int index) {
+		if (denseTypes[type]) {
+			return arena[typeOffsets[type] + sortedOffset + index];
+		}
+		return arena[typeOffsets[type] + index] & topicMask;
+	}
+
+	
+	/**
+	 * @return the count of the index-th entry of the type
+	 **/
+	int countAt(int type, int index) {
+		int offset = typeOffsets[type];
+
+		if (denseTypes[type]) {
+			return arena[offset + 1 + arena[offset + sortedOffset + index]];
+		}
+		return arena[offset + index] >> topicBits;
+	}
+
+	
+	/**
+	 * @return the count of a topic for the type: a lookup for the dense types,
+	 *         and for the others once indexPackedRows() was called, else a scan
+	 *         of the row
+	 **/
+	int getCount(int type, int topic) {
+		int offset = typeOffsets[type];
+
+		if (denseTypes[type]) {
+			return arena[offset + 1 + topic];
+		}
+		if (packedIndex != null) {
+			return typeLengths[type] == 0 ? 0 : packedIndex.getCount(indexOffsets[type], indexMasks[type], topic);
+		}
+		int end = offset + typeLengths[type];
+		for (int index = offset; index < end && arena[index] > 0; index++) {
+			if ((arena[index] & topicMask) == topic) {
+				return arena[index] >> topicBits;
+			}
+		}
+		return 0;
+	}
+
+	
+	boolean isDense(int type) {
+		return denseTypes[type];
+	}
+
+	
 	private void debugPrintNewTopic(int type, int newTopic) {
 		
-		int[] currentTypeTopicCounts = typeTopicCounts[type];
+		int offset = typeOffsets[type];
 
 		System.out.format("type: %d new topic: %d", type, newTopic);
-		for (int k=0; k<currentTypeTopicCounts.length; k++) {
-			System.out.format(" %d:%d", (currentTypeTopicCounts[k] & topicMask), 
-							            (currentTypeTopicCounts[k] >> topicBits));
+		for (int k=0; k<typeLengths[type]; k++) {
+			System.out.format(" %d:%d", (arena[offset + k] & topicMask),
+							            (arena[offset + k] >> topicBits));
 		}
 		System.out.println();
 	}
@@ -538,18 +1090,14 @@ public class TypeTopicCounts implements Serializable {
 		// Collect counts
 		for (int type = 0; type < numTypes; type++) {
 
-			int[] topicCounts = typeTopicCounts[type];
+			int numEntries = numEntries(type);
 
-			int index = 0;
-			while (index < topicCounts.length &&
-				   topicCounts[index] > 0) {
+			for (int index = 0; index < numEntries; index++) {
 
-				int topic = topicCounts[index] & topicMask;
-				int count = topicCounts[index] >> topicBits;
+				int topic = topicAt(type, index);
+				int count = countAt(type, index);
 
 				topicSortedWords[topic].add(new IDSorter(type, count));
-
-				index++;
 			}
 		}
 		return topicSortedWords;
@@ -572,24 +1120,20 @@ public class TypeTopicCounts implements Serializable {
 	
 	public void print(PrintWriter out, Alphabet alphabet) {
 		
-		for (int type = 0; type < typeTopicCounts.length; type++) {
+		for (int type = 0; type < numTypes; type++) {
 
 			StringBuilder buffer = new StringBuilder();
 
 			buffer.append(type).append(' ').append(alphabet.lookupObject(type));
 
-			int[] topicCounts = typeTopicCounts[type];
+			int numEntries = numEntries(type);
 
-			int index = 0;
-			while (index < topicCounts.length &&
-				   topicCounts[index] > 0) {
+			for (int index = 0; index < numEntries; index++) {
 
-				int topic = topicCounts[index] & topicMask;
-				int count = topicCounts[index] >> topicBits;
+				int topic = topicAt(type, index);
+				int count = countAt(type, index);
 				
 				buffer.append(' ').append(topic).append(':').append(count);
-
-				index++;
 			}
 
 			out.println(buffer);
@@ -599,19 +1143,16 @@ public class TypeTopicCounts implements Serializable {
 	
     public void debugPrint(PrintStream out, int type, double[] topicTermScores, double[] cachedCoefficients)
     {
-        int[] topicCounts = typeTopicCounts[type];
+        int numEntries = numEntries(type);
 
-        int index = 0;
-        while (index < topicCounts.length &&
-               topicCounts[index] > 0) {
+        for (int index = 0; index < numEntries; index++) {
 
-            int topic = topicCounts[index] & topicMask;
-            int count = topicCounts[index] >> topicBits;
+            int topic = topicAt(type, index);
+            int count = countAt(type, index);
             
             out.println(topic + "\t" + count + "\t" 
                               + topicTermScores[index] + "\t" 
                               + cachedCoefficients[topic]);
-            index++;
         }
     }
 	
@@ -637,20 +1178,16 @@ public class TypeTopicCounts implements Serializable {
 		for (int topic = 0; topic < numTopics; topic++) {
 			for (int type = 0; type < numTypes; type++) {
 
-				int[] topicCounts = typeTopicCounts[type];
-				
 				double weight = beta;
 
-				int index = 0;
-				while (index < topicCounts.length &&
-					   topicCounts[index] > 0) {
+				int numEntries = numEntries(type);
+				for (int index = 0; index < numEntries; index++) {
 
-					int currentTopic = topicCounts[index] & topicMask;
+					int currentTopic = topicAt(type, index);
 					if (currentTopic == topic) {
-						weight += topicCounts[index] >> topicBits;
+						weight += countAt(type, index);
 						break;
 					}
-					index++;
 				}
 				out.println(topic + "\t" + alphabet.lookupObject(type) + "\t" + weight);
 			}
@@ -671,36 +1208,30 @@ public class TypeTopicCounts implements Serializable {
 		
 		double logLikelihood = 0.0;
 		
-		int[] topicCounts;
-		
 		// Count the number of type-topic pairs
 		int nonZeroTypeTopics = 0;
 
 		for (int type=0; type < numTypes; type++) {
-			// reuse this array as a pointer
 
-			topicCounts = typeTopicCounts[type];
+			int numEntries = numEntries(type);
 
-			int index = 0;
-			while (index < topicCounts.length &&
-				   topicCounts[index] > 0) {
-//				int topic = topicCounts[index] & topicMask;
-				int count = topicCounts[index] >> topicBits;
+			for (int index = 0; index < numEntries; index++) {
+//				int topic = topicAt(type, index);
+				int count = countAt(type, index);
 				
 				nonZeroTypeTopics++;
 				logLikelihood += Dirichlet.logGammaStirling(beta + count);
 
                 if (Double.isNaN(logLikelihood)) {
-                    int topic = topicCounts[index] & topicMask;
+                    int topic = topicAt(type, index);
                     logger.warning("NaN in log likelihood calculation: type = " + type + " topic = " + topic + " count = " + count);
                     return 0;
                 }
                 else if (Double.isInfinite(logLikelihood)) {
-                    int topic = topicCounts[index] & topicMask;
+                    int topic = topicAt(type, index);
                     logger.warning("infinite log likelihood: type = " + type + " topic = " + topic + " count = " + count);
                     return 0;
                 }
-				index++;
 			}
 		}
 
@@ -724,22 +1255,25 @@ public class TypeTopicCounts implements Serializable {
         // Now count the number of type/topic pairs that have
         //  each number of tokens.
 
-        int index;
         for (int type = 0; type < numTypes; type++) {
-            int[] counts = typeTopicCounts[type];
-            index = 0;
-            while (index < counts.length &&
-                   counts[index] > 0) {
-                int count = counts[index] >> topicBits;
-                countHistogram[count]++;
-                index++;
+            int numEntries = numEntries(type);
+            for (int index = 0; index < numEntries; index++) {
+                countHistogram[countAt(type, index)]++;
             }
         }
         return countHistogram;
 	}
 	
 	public String getConfigSummary() {
-		return String.format("%d topics, %d topic bits, %s topic mask", this.numTopics, this.topicBits, Integer.toBinaryString(topicMask));
+		int numDenseTypes = 0;
+		int numWideTypes  = 0;
+		for (int type = 0; type < numTypes; type++) {
+			if (denseTypes[type]) { numDenseTypes++; }
+			if (typeTotals[type] > maxPackedCount) { numWideTypes++; }
+		}
+		return String.format("%d topics, %d topic bits, %s topic mask, %d dense types (%d above the packed limit of %d), %d arena entries",
+				this.numTopics, this.topicBits, Integer.toBinaryString(topicMask), numDenseTypes, numWideTypes,
+				maxPackedCount, arena.length);
 	}
 	
 	private void writeObject (ObjectOutputStream out) throws IOException {
@@ -751,11 +1285,15 @@ public class TypeTopicCounts implements Serializable {
 		out.writeInt(topicMask);
 		out.writeInt(topicBits);
 
-		out.writeObject(typeTopicCounts);
+		out.writeObject(arena);
+		out.writeObject(typeOffsets);
+		out.writeObject(typeLengths);
 		out.writeObject(topicTermScores);
 
        out.writeObject(typeTotals);
        out.writeInt(maxTypeCount);
+
+       out.writeObject(denseTypes);
 	}
 
 	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
@@ -771,12 +1309,18 @@ public class TypeTopicCounts implements Serializable {
 
 		topicMask = in.readInt();
 		topicBits = in.readInt();
+		maxPackedCount = Integer.MAX_VALUE >> topicBits;
 		
-		typeTopicCounts = (int[][])  in.readObject();
+		arena           = (int[])    in.readObject();
+		typeOffsets     = (int[])    in.readObject();
+		typeLengths     = (int[])    in.readObject();
 		topicTermScores = (double[]) in.readObject();
 		
 		typeTotals   = (int[])  in.readObject();
 		maxTypeCount = in.readInt();
+		
+		denseTypes   = (boolean[]) in.readObject();
+		setDenseOffsets();
 	}
 
 	
@@ -784,13 +1328,12 @@ public class TypeTopicCounts implements Serializable {
 
     public boolean typeExists(int type) {
         return (type < this.numTypes 
-                && this.typeTopicCounts[type] != null
-                && this.typeTopicCounts[type].length != 0);
+                && this.typeLengths[type] != 0);
     }
     
     public int getTypeTopicCount(int type, int i) {
         
-        return typeTopicCounts[type][i] & topicMask;
+        return topicAt(type, i);
     }
     
     
@@ -801,17 +1344,14 @@ public class TypeTopicCounts implements Serializable {
 
     public void doForType(int type, TopicFunction f) {
         
-        int[] topicCounts = typeTopicCounts[type];
+        int numEntries = numEntries(type);
 
-        int index = 0;
-        while (index < topicCounts.length && topicCounts[index] > 0) {
+        for (int index = 0; index < numEntries; index++) {
 
-            int topic = topicCounts[index] & topicMask;
-            int count = topicCounts[index] >> topicBits;
+            int topic = topicAt(type, index);
+            int count = countAt(type, index);
 
             f.doSomething(topic, count, topicTermScores[index]);
-
-            index++;
         }
     }
 }
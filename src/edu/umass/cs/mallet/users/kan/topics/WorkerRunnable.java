@@ -9,6 +9,7 @@ package edu.umass.cs.mallet.users.kan.topics;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cc.mallet.types.FeatureSequence;
 import cc.mallet.util.Randoms;
@@ -21,7 +22,7 @@ import cc.mallet.util.Randoms;
 
 public class WorkerRunnable implements Runnable {
 	
-	boolean isFinished = true;
+	volatile boolean isFinished = true;
 
 	final ArrayList<TopicAssignment> data;
 	final int startDoc, numDocs;
@@ -37,6 +38,13 @@ public class WorkerRunnable implements Runnable {
 	
 	protected double smoothingOnlyMass = 0.0;
 	protected double[] cachedCoefficients;
+	protected double[] topicTermScores;
+	protected DocTopicCounts docTopicCounts;   // reused for every document
+	
+	// for documents with their own alpha (see sampleTopicsForOneDocWithAlpha)
+	protected double[] inverseDenominators;   // 1 / (tokensPerTopic[t] + betaSum)
+	protected double inverseDenominatorSum;
+	protected double[] documentAlpha;         // the alpha of a document that is not kept (see getDocumentAlpha)
 
 	protected TypeTopicCounts typeTopicCounts; // indexed by <feature index, topic index>
 	protected int[] tokensPerTopic; // indexed by <topic index>
@@ -46,7 +54,39 @@ public class WorkerRunnable implements Runnable {
 	protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
 
 	boolean shouldSaveState = false;
-	boolean shouldBuildLocalCounts = true;
+	boolean shouldRecordChanges = true;
+	
+	// the (type, oldTopic, newTopic) triples of the tokens that changed topic
+	//  in this iteration, which the other workers replay on their copies
+	protected int[] changes = new int[3 * 1024];
+	protected int numChanges = 0;
+	
+	// Metropolis-Hastings sampling from alias table proposals (see useAliasSampler)
+	protected int mhSteps = 0;
+	protected AliasTable[] typeTables;     // the stale word proposal of each type
+	protected int[] typeTableDraws;        // the draws left before the table of a type is rebuilt
+	protected AliasTable smoothingTable;   // beta / (N[t] + sum(beta)), rebuilt every iteration
+	protected AliasTable alphaTable;       // alpha, rebuilt for every document or word-major sweep
+	protected TopicCountHashes docCountHashes;   // the topic counts of the documents being sampled
+	protected int[] aliasWork;
+	
+	// word-major sweeps (see useWordMajorSweep)
+	static int wordMajorBlockEntries = 1 << 22;   // tokens, plus topics for every alpha computed, per block
+	protected boolean wordMajor = false;
+	protected int[] blockDocStarts;                // the first token of each document of the block
+	protected int[][] blockDocTopics;
+	protected int[] blockDocBases;                 // where the count hash of each document starts
+	protected int[] blockDocMasks;
+	protected double[][] blockDocAlphas;
+	protected double[][] blockAlphaScratch;        // the alphas that are not kept anywhere else
+	protected long[] blockTokenKeys;               // type << 32 | token, sorted
+	protected int[] blockTokenDocs;
+	protected int loadedType = -1;                 // the type whose counts are in loadedTypeCounts
+	protected int[] loadedTypeCounts;
+	
+	// chunks of documents shared with the other workers (see shareChunks)
+	protected int[] chunkStarts;
+	protected AtomicInteger nextChunk;
 	
 	protected final Randoms random;
 	
@@ -84,6 +124,9 @@ public class WorkerRunnable implements Runnable {
 		this.numDocs = numDocs;
 
 		this.cachedCoefficients = new double[ numTopics ];
+		this.topicTermScores = new double[ numTopics ];
+		this.docTopicCounts = new DocTopicCounts(numTopics);
+		this.documentAlpha = new double[ numTopics ];
 
 		System.err.print("WorkerRunnable Thread: ");
 		System.err.println(this.typeTopicCounts.getConfigSummary());
@@ -92,11 +135,66 @@ public class WorkerRunnable implements Runnable {
 	/**
 	 *  If there is only one thread, we don't need to go through 
 	 *   communication overhead. This method asks this worker not
-	 *   to prepare local type-topic counts. The method should be
+	 *   to record the topic changes. The method should be
 	 *   called when we are using this code in a non-threaded environment.
 	 */
 	public void makeOnlyThread() {
-		shouldBuildLocalCounts = false;
+		shouldRecordChanges = false;
+	}
+
+	/**
+	 *  This worker samples against type-topic counts that are shared 
+	 *   with the other workers, so there are no changes to pass on.
+	 */
+	public void shareCounts() {
+		shouldRecordChanges = false;
+	}
+
+	/**
+	 *  Sample with Metropolis-Hastings instead of the SparseLDA buckets, 
+	 *   alternating proposals from the word (stale alias tables over the
+	 *   type/topic counts) and from the document (a token of the document
+	 *   or alpha), so that the cost per token does not grow with the 
+	 *   number of topics.
+	 *
+	 *  @param mhSteps  the number of word and document proposal pairs per token
+	 */
+	public void useAliasSampler(int mhSteps) {
+		this.mhSteps = mhSteps;
+		
+		typeTables = new AliasTable[numTypes];
+		typeTableDraws = new int[numTypes];
+		smoothingTable = new AliasTable();
+		alphaTable = new AliasTable();
+		docCountHashes = new TopicCountHashes(TopicCountHashes.numSlots(numTopics), 
+				typeTopicCounts.topicBits, typeTopicCounts.topicMask);
+		aliasWork = new int[numTopics];
+		loadedTypeCounts = new int[numTopics];
+	}
+
+	/**
+	 *  Sample the tokens grouped by type instead of document by document,
+	 *   which touches the row of each type once per block of documents
+	 *   instead of once per token. The Metropolis-Hastings sampler is used,
+	 *   as the SparseLDA buckets are kept per document. A block is as
+	 *   large as the documents of the worker, up to wordMajorBlockEntries.
+	 */
+	public void useWordMajorSweep() {
+		if (mhSteps == 0) {
+			throw new IllegalStateException("The word-major sweep needs the alias sampler");
+		}
+		wordMajor = true;
+	}
+
+	/**
+	 *  Instead of its own documents, let this worker sample the chunks
+	 *   of documents from chunkStarts[c] to chunkStarts[c + 1], claiming
+	 *   the next c from nextChunk until all of them are taken. The 
+	 *   caller resets nextChunk to 0 before each iteration.
+	 */
+	public void shareChunks(int[] chunkStarts, AtomicInteger nextChunk) {
+		this.chunkStarts = chunkStarts;
+		this.nextChunk = nextChunk;
 	}
 
 	public int[] getDocLengthCounts() { return docLengthCounts; }
@@ -124,57 +222,50 @@ public class WorkerRunnable implements Runnable {
 	}
 
 	/**
-	 *  Once we have sampled the local counts, trash the 
-	 *   "global" type topic counts and reuse the space to 
-	 *   build a summary of the type topic counts specific to 
-	 *   this worker's section of the corpus.
+	 *  Samples the topics of this worker's documents once. Any exception
+	 *   is passed on to the caller (through the Future when the worker
+	 *   runs on the thread pool).
 	 */
-	private void buildLocalTypeTopicCounts () {
-
-		// Clear the topic totals
-		Arrays.fill(tokensPerTopic, 0);
-
-		// Clear the type/topic counts, only 
-		//  looking at the entries before the first 0 entry.
-
-		typeTopicCounts.clearCounts();
-
-        for (int doc = startDoc;
-			 doc < data.size() && doc < startDoc + numDocs;
-             doc++) {
-
-			TopicAssignment document = data.get(doc);
-
-            FeatureSequence tokens = document.getTokens();
-            int[] topics = document.getTopics();
-            
-            for (int position = 0; position < tokens.size(); position++) {
-
-				int topic = topics[position];
-
-				tokensPerTopic[topic]++;
-				
-				int type = tokens.getIndexAtPosition(position);
-				
-				typeTopicCounts.initializeTypeTopicCount(type, topic);
-			}
-		}
-	}
-
-
 	public void run () {
 
+		if (! isFinished) { System.out.println("already running!"); return; }
+		
+		isFinished = false;
+		
 		try {
-			
-			if (! isFinished) { System.out.println("already running!"); return; }
-			
-			isFinished = false;
-			
+			numChanges = 0;
 			prepareToSample();
 			
-			for (int doc = startDoc;
-				 doc < data.size() && doc < startDoc + numDocs;
-				 doc++) {
+			if (mhSteps > 0) {
+				buildSmoothingTable();
+			}
+			
+			if (nextChunk == null) {
+				sampleDocuments(startDoc, Math.min(data.size(), startDoc + numDocs));
+			}
+			else {
+				int numChunks = chunkStarts.length - 1;
+				int chunk;
+				while ((chunk = nextChunk.getAndIncrement()) < numChunks) {
+					sampleDocuments(chunkStarts[chunk], chunkStarts[chunk + 1]);
+				}
+			}
+
+			shouldSaveState = false;
+		} finally {
+			isFinished = true;
+		}
+	}
+
+	/**
+	 *  Samples the documents from fromDoc up to (but not including) toDoc
+	 */
+	protected void sampleDocuments(int fromDoc, int toDoc) {
+		if (wordMajor) {
+			sampleWordMajor(fromDoc, toDoc);
+		}
+		else {
+			for (int doc = fromDoc; doc < toDoc; doc++) {
 				
 				/*
 				  if (doc % 10000 == 0) {
@@ -184,16 +275,6 @@ public class WorkerRunnable implements Runnable {
 				
 				sampleTopicsForOneDoc (data.get(doc), true);
 			}
-			
-			if (shouldBuildLocalCounts) {
-				buildLocalTypeTopicCounts();
-			}
-
-			shouldSaveState = false;
-			isFinished = true;
-
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
@@ -244,6 +325,11 @@ public class WorkerRunnable implements Runnable {
 	
 	protected void sampleTopicsForOneDoc(TopicAssignment document, boolean readjustTopicsAndStats /* currently ignored */) {
 
+		if (mhSteps > 0) {
+			sampleTopicsForOneDocMH(document);
+			return;
+		}
+		
         FeatureSequence tokenSequence = document.getTokens();
 		int[] oneDocTopics = document.getTopics();
 
@@ -252,19 +338,14 @@ public class WorkerRunnable implements Runnable {
 		//double topicWeightsSum;
 		int docLength = tokenSequence.getLength();
 
-		int[] localTopicCounts = new int[numTopics];	// doc topic counts
-		int[] localTopicIndex = new int[numTopics];		// dense index of non-zero doc topics
-
 		//		populate topic counts
-		for (int position = 0; position < docLength; position++) {
-			localTopicCounts[oneDocTopics[position]]++;
-		}
+		docTopicCounts.set(oneDocTopics, docLength);
+		int[] localTopicCounts = docTopicCounts.counts;	// doc topic counts
+		int[] localTopicIndex = docTopicCounts.topics;	// the non-zero doc topics
 
 		//		Initialize the topic count/beta sampling bucket
 		double topicBetaMass = 0.0;   // = \sum_{t}\frac{n_{t|d}\beta}{n_t + \sum\beta}
 
-		// Build an array that densely lists the topics that
-		//  have non-zero counts.
 		// Initialize cached coefficients and the topic/beta 
 		//  normalizing constant.
         //                                                beta * n_{t|d}
@@ -275,28 +356,20 @@ public class WorkerRunnable implements Runnable {
         //                    cachedCoefficient[t] = sum  ------------------
         //                                            t    N[t] + sum(beta)
 
-		int denseIndex = 0;
-		for (int topic = 0; topic < numTopics; topic++) {
-			
+		int denseIndex;
+		for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
 			int n = localTopicCounts[topic];
 			
-			if (n != 0) {
-				localTopicIndex[denseIndex] = topic;
-				denseIndex++;
-				
-				//	initialize the normalization constant for the (B * n_{t|d}) term
-				topicBetaMass += beta * n /	(tokensPerTopic[topic] + betaSum);	
+			//	initialize the normalization constant for the (B * n_{t|d}) term
+			topicBetaMass += beta * n /	(tokensPerTopic[topic] + betaSum);	
 
-				//	update the coefficients for the non-zero topics
-				//      \sum_{t}\frac{\alpha_t + N_{t|d}}{N_t + \sum\beta}
-				
-				cachedCoefficients[topic] =	(alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
-			}
+			//	update the coefficients for the non-zero topics
+			//      \sum_{t}\frac{\alpha_t + N_{t|d}}{N_t + \sum\beta}
+			
+			cachedCoefficients[topic] =	(alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
 		}
 
-		// Record the total number of non-zero topics
-		int nonZeroTopics = denseIndex;
-
 		//	Iterate over the positions (words) in the document 
 		for (int position = 0; position < docLength; position++) {
 			type = tokenSequence.getIndexAtPosition(position);
@@ -311,36 +384,11 @@ public class WorkerRunnable implements Runnable {
 			topicBetaMass -= beta * localTopicCounts[oldTopic] /
 				(tokensPerTopic[oldTopic] + betaSum);
 			
-			// Decrement the local doc/topic counts
-
-			localTopicCounts[oldTopic]--;
+			// Decrement the local doc/topic counts, which also drops
+			//  the old topic from the non-zero topics if this was its 
+			//  last token
 
-			// Maintain the dense index, if we are deleting
-			//  the old topic
-			if (localTopicCounts[oldTopic] == 0) {
-
-				// First get to the dense location associated with
-				//  the old topic.
-				
-				denseIndex = 0;
-
-				// We know it's in there somewhere, so we don't 
-				//  need bounds checking.
-				while (localTopicIndex[denseIndex] != oldTopic) {
-					denseIndex++;
-				}
-				
-				// shift all remaining dense indices to the left.
-				while (denseIndex < nonZeroTopics) {
-					if (denseIndex < localTopicIndex.length - 1) {
-						localTopicIndex[denseIndex] = 
-							localTopicIndex[denseIndex + 1];
-					}
-					denseIndex++;
-				}
-
-				nonZeroTopics --;
-			}
+			docTopicCounts.decrement(oldTopic);
 
 			// Decrement the global topic count totals
 			tokensPerTopic[oldTopic]--;
@@ -363,18 +411,32 @@ public class WorkerRunnable implements Runnable {
 			// Now go over the type/topic counts, decrementing
 			//  where appropriate, and calculating the score
 			//  for each topic at the same time.
+			// If the counts are shared, the row of the type must not
+			//  change between scoring and picking from the scores.
 
-			double   topicTermMass = typeTopicCounts.calculateTopicTermScoresWhileDecrementingOldTopic(type, oldTopic, cachedCoefficients); 
-			double   sample        = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
-			double   origSample    = sample;
+			double   topicTermMass;
+			double   sample;
 
 			//	Make sure it actually gets set
 			newTopic = -1;
 
-			if (sample < topicTermMass) {	// sample falls in topic term mass
-				//topicTermCount++;
+			typeTopicCounts.lockType(type);
+			try {
+				topicTermMass = typeTopicCounts.calculateTopicTermScoresWhileDecrementingOldTopic(type, oldTopic, cachedCoefficients, topicTermScores); 
+				sample        = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+
+				if (sample < topicTermMass) {	// sample falls in topic term mass
+					//topicTermCount++;
 
-				newTopic = typeTopicCounts.updateTopicInTermMass(type, sample);
+					newTopic = typeTopicCounts.updateTopicInTermMass(type, sample, topicTermScores);
+				}
+			} finally {
+				typeTopicCounts.unlockType(type);
+			}
+			double   origSample    = sample;
+
+			if (sample < topicTermMass) {
+				// already placed in the topic term mass
 			}
 			else {
 				sample -= topicTermMass;
@@ -386,7 +448,7 @@ public class WorkerRunnable implements Runnable {
 
 					sample /= beta;
 
-					for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+					for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
 						int topic = localTopicIndex[denseIndex];
 
 						sample -= localTopicCounts[topic] /
@@ -423,7 +485,12 @@ public class WorkerRunnable implements Runnable {
 				//  which may be the first empty position if this
 				//  is a new topic for this word.
 				
-				typeTopicCounts.updateTopicInSmoothingMass(type, newTopic, inBetaMass);
+				typeTopicCounts.lockType(type);
+				try {
+					typeTopicCounts.updateTopicInSmoothingMass(type, newTopic, inBetaMass);
+				} finally {
+					typeTopicCounts.unlockType(type);
+				}
 			}
 
 			if (newTopic == -1) {
@@ -436,37 +503,19 @@ public class WorkerRunnable implements Runnable {
 
 			//			Put that new topic into the counts
 			oneDocTopics[position] = newTopic;
+			
+			if (shouldRecordChanges && newTopic != oldTopic) {
+				recordChange(type, oldTopic, newTopic);
+			}
 
 			smoothingOnlyMass -= alpha[newTopic] * beta / 
 				(tokensPerTopic[newTopic] + betaSum);
 			topicBetaMass -= beta * localTopicCounts[newTopic] /
 				(tokensPerTopic[newTopic] + betaSum);
 
-			localTopicCounts[newTopic]++;
-
-			// If this is a new topic for this document,
-			//  add the topic to the dense index.
-			if (localTopicCounts[newTopic] == 1) {
-				
-				// First find the point where we 
-				//  should insert the new topic by going to
-				//  the end (which is the only reason we're keeping
-				//  track of the number of non-zero
-				//  topics) and working backwards
-
-				denseIndex = nonZeroTopics;
-
-				while (denseIndex > 0 &&
-					   localTopicIndex[denseIndex - 1] > newTopic) {
-
-					localTopicIndex[denseIndex] =
-						localTopicIndex[denseIndex - 1];
-					denseIndex--;
-				}
-				
-				localTopicIndex[denseIndex] = newTopic;
-				nonZeroTopics++;
-			}
+			// Increment the local doc/topic counts, which adds the
+			//  topic to the non-zero topics if it is new for this document
+			docTopicCounts.increment(newTopic);
 
 			tokensPerTopic[newTopic]++;
 
@@ -487,7 +536,7 @@ public class WorkerRunnable implements Runnable {
 			//  for dirichlet estimation
 			docLengthCounts[ docLength ]++;
 
-			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+			for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
 				int topic = localTopicIndex[denseIndex];
 				
 				topicDocCounts[topic][ localTopicCounts[topic] ]++;
@@ -497,7 +546,7 @@ public class WorkerRunnable implements Runnable {
 		//	Clean up our mess: reset the coefficients to values with only
 		//	smoothing. The next doc will update its own non-zero topics...
 
-		for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+		for (denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
 			int topic = localTopicIndex[denseIndex];
 
 			cachedCoefficients[topic] =
@@ -506,33 +555,647 @@ public class WorkerRunnable implements Runnable {
 
 	}
 
+	/**
+	 *  Sets the inverse denominators from the current topic totals, 
+	 *   once per iteration
+	 */
+	protected void initInverseDenominators() {
+		if (inverseDenominators == null) {
+			inverseDenominators = new double[numTopics];
+		}
+		inverseDenominatorSum = 0.0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			inverseDenominators[topic] = 1.0 / (tokensPerTopic[topic] + betaSum);
+			inverseDenominatorSum += inverseDenominators[topic];
+		}
+	}
+	
+	private void changeTokensPerTopic(int topic, int change) {
+		tokensPerTopic[topic] += change;
+		inverseDenominatorSum -= inverseDenominators[topic];
+		inverseDenominators[topic] = 1.0 / (tokensPerTopic[topic] + betaSum);
+		inverseDenominatorSum += inverseDenominators[topic];
+	}
+
+	/**
+	 *  SparseLDA for a document with its own alpha (DMR), whose set up 
+	 *   only touches the topics of the document, rather than all the 
+	 *   topics as sampleTopicsForOneDoc would have to when alpha changes.
+	 *  <p/>
+	 *  The coefficients of the topic term bucket are computed from alpha
+	 *   and the inverse denominators on the fly. The smoothing bucket,
+	 *   beta * sum_t alpha[t] / (N[t] + sum(beta)), is replaced by the 
+	 *   bound beta * alphaMax * sum_t 1 / (N[t] + sum(beta)), whose sum
+	 *   is kept up to date for all documents. Only when a sample falls in
+	 *   the bound is the true smoothing mass computed (and from then on 
+	 *   kept up to date for the rest of the document); a sample in the 
+	 *   slack between the two is drawn again.
+	 *
+	 *  @param docAlpha  the alpha of the document
+	 *  @param alphaMax  the largest value in docAlpha
+	 */
+	protected void sampleTopicsForOneDocWithAlpha(TopicAssignment document, double[] docAlpha, double alphaMax) {
+		
+        FeatureSequence tokenSequence = document.getTokens();
+		int[] oneDocTopics = document.getTopics();
+		int docLength = tokenSequence.getLength();
+		
+		docTopicCounts.set(oneDocTopics, docLength);
+		int[] localTopicCounts = docTopicCounts.counts;
+		int[] localTopicIndex = docTopicCounts.topics;
+		
+		double topicBetaMass = 0.0;
+		for (int denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
+			topicBetaMass += beta * localTopicCounts[topic] * inverseDenominators[topic];
+		}
+		
+		// the true smoothing mass, once it is needed
+		boolean hasSmoothingMass = false;
+		double smoothingMass = 0.0;
+		
+		for (int position = 0; position < docLength; position++) {
+			int type = tokenSequence.getIndexAtPosition(position);
+			int oldTopic = oneDocTopics[position];
+			
+			//	Remove this token from all counts
+			
+			if (hasSmoothingMass) {
+				smoothingMass -= beta * docAlpha[oldTopic] * inverseDenominators[oldTopic];
+			}
+			topicBetaMass -= beta * localTopicCounts[oldTopic] * inverseDenominators[oldTopic];
+			
+			docTopicCounts.decrement(oldTopic);
+			changeTokensPerTopic(oldTopic, -1);
+			assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
+			
+			if (hasSmoothingMass) {
+				smoothingMass += beta * docAlpha[oldTopic] * inverseDenominators[oldTopic];
+			}
+			topicBetaMass += beta * localTopicCounts[oldTopic] * inverseDenominators[oldTopic];
+			
+			int newTopic = -1;
+			double sample;
+			boolean inTermMass = false;
+			boolean inBetaMass = false;
+			
+			// The draw may be repeated, so the row must not change 
+			//  until the new topic is in.
+			typeTopicCounts.lockType(type);
+			try {
+				double topicTermMass = typeTopicCounts.calculateTopicTermScoresWhileDecrementingOldTopic(
+					type, oldTopic, docAlpha, localTopicCounts, inverseDenominators, topicTermScores);
+				
+				while (true) {
+					// a little above the bound, in case the running sum of the
+					//  inverse denominators has drifted below the true sum
+					double smoothingBound = hasSmoothingMass ? smoothingMass : 
+						beta * alphaMax * inverseDenominatorSum * (1.0 + 1e-9);
+					
+					sample = random.nextUniform() * (smoothingBound + topicBetaMass + topicTermMass);
+					
+					if (sample < topicTermMass) {
+						newTopic = typeTopicCounts.updateTopicInTermMass(type, sample, topicTermScores);
+						inTermMass = true;
+						break;
+					}
+					sample -= topicTermMass;
+					
+					if (sample < topicBetaMass) {
+						inBetaMass = true;
+						sample /= beta;
+						
+						for (int denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
+							int topic = localTopicIndex[denseIndex];
+							
+							sample -= localTopicCounts[topic] * inverseDenominators[topic];
+							
+							if (sample <= 0.0) {
+								newTopic = topic;
+								break;
+							}
+						}
+						break;
+					}
+					sample -= topicBetaMass;
+					
+					if (! hasSmoothingMass) {
+						smoothingMass = 0.0;
+						for (int topic = 0; topic < numTopics; topic++) {
+							smoothingMass += beta * docAlpha[topic] * inverseDenominators[topic];
+						}
+						hasSmoothingMass = true;
+					}
+					
+					if (sample < smoothingMass) {
+						sample /= beta;
+						
+						newTopic = 0;
+						sample -= docAlpha[newTopic] * inverseDenominators[newTopic];
+						
+						while (sample > 0.0 && newTopic < numTopics - 1) {
+							newTopic++;
+							sample -= docAlpha[newTopic] * inverseDenominators[newTopic];
+						}
+						break;
+					}
+					// in the slack between the bound and the smoothing mass
+				}
+				
+				if (newTopic == -1) {
+					System.err.println("WorkerRunnable sampling error: " + sample + " " + smoothingMass + " " + 
+							topicBetaMass);
+					newTopic = numTopics-1;
+				}
+				
+				if (! inTermMass) {
+					typeTopicCounts.updateTopicInSmoothingMass(type, newTopic, inBetaMass);
+				}
+			} finally {
+				typeTopicCounts.unlockType(type);
+			}
+			
+			//			Put that new topic into the counts
+			oneDocTopics[position] = newTopic;
+			
+			if (shouldRecordChanges && newTopic != oldTopic) {
+				recordChange(type, oldTopic, newTopic);
+			}
+			
+			if (hasSmoothingMass) {
+				smoothingMass -= beta * docAlpha[newTopic] * inverseDenominators[newTopic];
+			}
+			topicBetaMass -= beta * localTopicCounts[newTopic] * inverseDenominators[newTopic];
+			
+			docTopicCounts.increment(newTopic);
+			changeTokensPerTopic(newTopic, +1);
+			
+			if (hasSmoothingMass) {
+				smoothingMass += beta * docAlpha[newTopic] * inverseDenominators[newTopic];
+			}
+			topicBetaMass += beta * localTopicCounts[newTopic] * inverseDenominators[newTopic];
+		}
+		
+		if (shouldSaveState) {
+			docLengthCounts[ docLength ]++;
+			
+			for (int denseIndex = 0; denseIndex < docTopicCounts.size; denseIndex++) {
+				int topic = localTopicIndex[denseIndex];
+				topicDocCounts[topic][ localTopicCounts[topic] ]++;
+			}
+		}
+	}
+
+	private void buildSmoothingTable() {
+		double[] weights = new double[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			weights[topic] = beta / (tokensPerTopic[topic] + betaSum);
+		}
+		smoothingTable.build(null, weights, numTopics, aliasWork);
+		
+		// the word tables are built from the counts as they are now
+		Arrays.fill(typeTableDraws, 0);
+	}
+
+	/**
+	 *  @return the word proposal of a type, which is rebuilt from the current
+	 *           counts once it has been drawn from as often as it has entries
+	 */
+	private AliasTable getTypeTable(int type) {
+		AliasTable table = typeTables[type];
+		
+		if (table != null && typeTableDraws[type] > 0) {
+			typeTableDraws[type]--;
+			return table;
+		}
+		if (table == null) {
+			table = new AliasTable();
+			typeTables[type] = table;
+		}
+		
+		int size;
+		int[] topics;
+		double[] weights = table.weights;
+		
+		if (typeTopicCounts.isDense(type)) {
+			size = numTopics;
+			topics = null;
+			if (weights == null) {
+				weights = new double[numTopics];
+			}
+			for (int topic = 0; topic < numTopics; topic++) {
+				weights[topic] = typeTopicCounts.getCount(type, topic) / (tokensPerTopic[topic] + betaSum);
+			}
+		}
+		else {
+			size = typeTopicCounts.numEntries(type);
+			topics = table.topics;
+			if (topics == null || topics.length < size) {
+				topics = new int[size];
+				weights = new double[size];
+			}
+			for (int index = 0; index < size; index++) {
+				int topic = typeTopicCounts.topicAt(type, index);
+				topics[index] = topic;
+				weights[index] = typeTopicCounts.countAt(type, index) / (tokensPerTopic[topic] + betaSum);
+			}
+		}
+		table.build(topics, weights, size, aliasWork);
+		typeTableDraws[type] = size;
+		return table;
+	}
+
+	/**
+	 *  The unnormalised probability of a topic for the token, with the token 
+	 *   itself removed from all the counts
+	 */
+	private double topicWeight(int type, int topic, int docCount, double[] docAlpha) {
+		int typeCount = (type == loadedType) ? loadedTypeCounts[topic] : typeTopicCounts.getCount(type, topic);
+		return (docCount + docAlpha[topic]) * (typeCount + beta) /
+			(tokensPerTopic[topic] + betaSum);
+	}
+
+	/**
+	 *  Draws a new topic for a token with mhSteps pairs of word and document
+	 *   proposals. The token must already be removed from all the counts, 
+	 *   but still be in docTopics.
+	 *
+	 *  @param docBase        where the hash of the topic counts of the document
+	 *                         starts in docCountHashes
+	 *  @param docMask        the number of slots of the hash, minus 1
+	 *  @param docAlpha       the alpha of the document
+	 *  @param alphaProposal  the alias table the document proposal draws from
+	 *                         instead of the tokens, over docAlpha or an
+	 *                         alpha shared by several documents
+	 */
+	private int sampleTopicMH(int type, int oldTopic, int[] docTopics, int docLength,
+			int docBase, int docMask, double[] docAlpha, AliasTable alphaProposal) {
+		
+		double[] proposalAlpha = alphaProposal.weights;
+		AliasTable typeTable = getTypeTable(type);
+		double proposalMass = typeTable.mass + smoothingTable.mass;
+		
+		int topic = oldTopic;
+		int topicDocCount = docCountHashes.getCount(docBase, docMask, topic);
+		double topicWeight = topicWeight(type, topic, topicDocCount, docAlpha);
+		
+		for (int step = 0; step < mhSteps; step++) {
+			
+			// word proposal: (n_{w|t} + beta) / (n_t + sum(beta)), from stale counts.
+			//  A draw costs more than the rest of a step, so the uniform that 
+			//  picks the table is scaled back to [0, 1) to sample the table.
+			int proposal;
+			double sample = random.nextUniform() * proposalMass;
+			if (sample < typeTable.mass) {
+				proposal = typeTable.sample(sample / typeTable.mass);
+			}
+			else {
+				proposal = smoothingTable.sample((sample - typeTable.mass) / smoothingTable.mass);
+			}
+			
+			if (proposal != topic) {
+				int proposalDocCount = docCountHashes.getCount(docBase, docMask, proposal);
+				double proposalWeight = topicWeight(type, proposal, proposalDocCount, docAlpha);
+				double acceptance = proposalWeight / topicWeight *
+					(typeTable.weight(topic) + smoothingTable.weights[topic]) /
+					(typeTable.weight(proposal) + smoothingTable.weights[proposal]);
+				
+				if (acceptance >= 1.0 || random.nextUniform() < acceptance) {
+					topic = proposal;
+					topicDocCount = proposalDocCount;
+					topicWeight = proposalWeight;
+				}
+			}
+			
+			// document proposal: n_{t|d} + alpha[t], where the token still counts 
+			//  for its old topic, as it is still in docTopics
+			sample = random.nextUniform() * (docLength + alphaProposal.mass);
+			if (sample < docLength) {
+				proposal = docTopics[(int) sample];
+			}
+			else {
+				proposal = alphaProposal.sample((sample - docLength) / alphaProposal.mass);
+			}
+			
+			if (proposal != topic) {
+				int proposalDocCount = docCountHashes.getCount(docBase, docMask, proposal);
+				double proposalWeight = topicWeight(type, proposal, proposalDocCount, docAlpha);
+				double acceptance = proposalWeight / topicWeight *
+					(topicDocCount + proposalAlpha[topic] + (topic == oldTopic ? 1 : 0)) /
+					(proposalDocCount + proposalAlpha[proposal] + (proposal == oldTopic ? 1 : 0));
+				
+				if (acceptance >= 1.0 || random.nextUniform() < acceptance) {
+					topic = proposal;
+					topicDocCount = proposalDocCount;
+					topicWeight = proposalWeight;
+				}
+			}
+		}
+		return topic;
+	}
+
+	protected void sampleTopicsForOneDocMH(TopicAssignment document) {
+
+        FeatureSequence tokenSequence = document.getTokens();
+		int[] oneDocTopics = document.getTopics();
+		int docLength = tokenSequence.getLength();
+
+		int docMask = TopicCountHashes.numSlots(Math.min(docLength, numTopics)) - 1;
+		docCountHashes.clear(docMask + 1);
+		for (int position = 0; position < docLength; position++) {
+			docCountHashes.increment(0, docMask, oneDocTopics[position]);
+		}
+		
+		// alpha may be different for every document (DMR)
+		double[] docAlpha = getDocumentAlpha(document, documentAlpha);
+		alphaTable.build(null, docAlpha, numTopics, aliasWork);
+
+		for (int position = 0; position < docLength; position++) {
+			int type = tokenSequence.getIndexAtPosition(position);
+			int oldTopic = oneDocTopics[position];
+			int topic;
+
+			docCountHashes.decrement(0, docMask, oldTopic);
+			tokensPerTopic[oldTopic]--;
+			
+			typeTopicCounts.lockType(type);
+			try {
+				typeTopicCounts.decrementTypeTopicCount(type, oldTopic);
+				topic = sampleTopicMH(type, oldTopic, oneDocTopics, docLength, 0, docMask, docAlpha, alphaTable);
+				typeTopicCounts.initializeTypeTopicCount(type, topic);
+			} finally {
+				typeTopicCounts.unlockType(type);
+			}
+			
+			oneDocTopics[position] = topic;
+			docCountHashes.increment(0, docMask, topic);
+			tokensPerTopic[topic]++;
+			
+			if (shouldRecordChanges && topic != oldTopic) {
+				recordChange(type, oldTopic, topic);
+			}
+		}
+
+		if (shouldSaveState) {
+			saveDocumentState(docLength, 0, docMask);
+		}
+	}
+
+	/**
+	 *  Update the document-topic count histogram, for dirichlet estimation
+	 */
+	private void saveDocumentState(int docLength, int docBase, int docMask) {
+		docLengthCounts[ docLength ]++;
+
+		for (int slot = docBase; slot <= docBase + docMask; slot++) {
+			int count = docCountHashes.countAt(slot);
+			if (count > 0) {
+				topicDocCounts[ docCountHashes.topicAt(slot) ][ count ]++;
+			}
+		}
+	}
+
+	/**
+	 *  @param scratch  an array of numTopics the alpha may be written to
+	 *  @return the alpha to sample the document with: an array that is
+	 *           shared by many documents, or scratch if the alpha of the
+	 *           document is not kept (the DMR workers compute it from the
+	 *           features of the document)
+	 */
+	protected double[] getDocumentAlpha(TopicAssignment document, double[] scratch) {
+		return alpha;
+	}
+
+	/**
+	 *  Samples the documents in word-major order, a block of
+	 *   documents at a time: the tokens of a block are sorted by type, 
+	 *   so that the row of a type is loaded once per block and all its
+	 *   tokens are sampled one after the other. The topic counts of the
+	 *   documents of the block are kept on the side in small hashes, so 
+	 *   that they take space by the token, not by the topic.
+	 */
+	protected void sampleWordMajor(int fromDoc, int toDoc) {
+		// The documents share the alpha proposal. Where a document has an 
+		//  alpha of its own (DMR) the acceptance corrects for the difference.
+		alphaTable.build(null, alpha, numTopics, aliasWork);
+		
+		int blockStart = fromDoc;
+		while (blockStart < toDoc) {
+			blockStart = sampleBlockWordMajor(blockStart, toDoc);
+		}
+	}
+
+	/**
+	 *  Samples the documents from blockStart on, until the block is full
+	 *
+	 *  @return the first document that was not sampled
+	 */
+	private int sampleBlockWordMajor(int blockStart, int toDoc) {
+		int maxBlockDocs = toDoc - blockStart;
+		
+		if (blockDocBases == null || blockDocBases.length < maxBlockDocs) {
+			blockDocStarts = new int[maxBlockDocs + 1];
+			blockDocTopics = new int[maxBlockDocs][];
+			blockDocBases = new int[maxBlockDocs];
+			blockDocMasks = new int[maxBlockDocs];
+			blockDocAlphas = new double[maxBlockDocs][];
+		}
+		if (blockAlphaScratch == null) {
+			blockAlphaScratch = new double[1][];
+		}
+		
+		// lay out the documents until the block is full
+		int numTokens = 0;
+		int numSlots = 0;
+		int numScratch = 0;
+		int blockEnd = blockStart;
+		
+		while (blockEnd < toDoc && 
+				(blockEnd == blockStart || numTokens + (long) numScratch * numTopics < wordMajorBlockEntries)) {
+			TopicAssignment document = data.get(blockEnd);
+			int doc = blockEnd - blockStart;
+			int docLength = document.getTokens().getLength();
+			
+			if (numScratch == blockAlphaScratch.length) {
+				blockAlphaScratch = Arrays.copyOf(blockAlphaScratch, numScratch * 2);
+			}
+			if (blockAlphaScratch[numScratch] == null) {
+				blockAlphaScratch[numScratch] = new double[numTopics];
+			}
+			blockDocAlphas[doc] = getDocumentAlpha(document, blockAlphaScratch[numScratch]);
+			if (blockDocAlphas[doc] == blockAlphaScratch[numScratch]) {
+				numScratch++;
+			}
+			
+			blockDocStarts[doc] = numTokens;
+			blockDocTopics[doc] = document.getTopics();
+			blockDocBases[doc] = numSlots;
+			blockDocMasks[doc] = TopicCountHashes.numSlots(Math.min(docLength, numTopics)) - 1;
+			numTokens += docLength;
+			numSlots += blockDocMasks[doc] + 1;
+			blockEnd++;
+		}
+		int numBlockDocs = blockEnd - blockStart;
+		blockDocStarts[numBlockDocs] = numTokens;
+		
+		// count the topics of the documents, and sort their tokens by type, 
+		//  then by document and position
+		docCountHashes.clear(numSlots);
+		if (blockTokenKeys == null || blockTokenKeys.length < numTokens) {
+			blockTokenKeys = new long[numTokens];
+			blockTokenDocs = new int[numTokens];
+		}
+		int token = 0;
+		for (int doc = 0; doc < numBlockDocs; doc++) {
+			TopicAssignment document = data.get(blockStart + doc);
+			FeatureSequence tokens = document.getTokens();
+			int[] topics = document.getTopics();
+			
+			for (int position = 0; position < tokens.getLength(); position++) {
+				docCountHashes.increment(blockDocBases[doc], blockDocMasks[doc], topics[position]);
+				blockTokenKeys[token] = ((long) tokens.getIndexAtPosition(position) << 32) | token;
+				blockTokenDocs[token] = doc;
+				token++;
+			}
+		}
+		Arrays.sort(blockTokenKeys, 0, numTokens);
+		
+		if (numTokens > 0) {
+			// start at a random type, so that workers that share the 
+			//  counts do not all queue up for the same rows
+			int start = random.nextInt(numTokens);
+			while (start > 0 && (blockTokenKeys[start - 1] >>> 32) == (blockTokenKeys[start] >>> 32)) {
+				start--;
+			}
+			sampleTypesWordMajor(start, numTokens, blockStart);
+			sampleTypesWordMajor(0, start, blockStart);
+		}
+		
+		if (shouldSaveState) {
+			for (int doc = 0; doc < numBlockDocs; doc++) {
+				saveDocumentState(blockDocStarts[doc + 1] - blockDocStarts[doc], blockDocBases[doc], blockDocMasks[doc]);
+			}
+		}
+		
+		Arrays.fill(blockDocTopics, 0, numBlockDocs, null);
+		Arrays.fill(blockDocAlphas, 0, numBlockDocs, null);
+		return blockEnd;
+	}
+
+	/**
+	 *  Samples the sorted tokens from one index to another, type by type
+	 */
+	private void sampleTypesWordMajor(int from, int to, int blockStart) {
+		int first = from;
+		while (first < to) {
+			int type = (int) (blockTokenKeys[first] >>> 32);
+			int last = first + 1;
+			while (last < to && (int) (blockTokenKeys[last] >>> 32) == type) {
+				last++;
+			}
+			sampleTypeWordMajor(type, first, last, blockStart);
+			first = last;
+		}
+	}
+
+	private void sampleTypeWordMajor(int type, int first, int last, int blockStart) {
+		
+		typeTopicCounts.lockType(type);
+		try {
+			// spread the counts of the type out by topic
+			int numEntries = typeTopicCounts.numEntries(type);
+			for (int index = 0; index < numEntries; index++) {
+				loadedTypeCounts[typeTopicCounts.topicAt(type, index)] = typeTopicCounts.countAt(type, index);
+			}
+			loadedType = type;
+			
+			for (int i = first; i < last; i++) {
+				int token = (int) blockTokenKeys[i];
+				int doc = blockTokenDocs[token];
+				int position = token - blockDocStarts[doc];
+				int docBase = blockDocBases[doc];
+				int docMask = blockDocMasks[doc];
+				
+				int[] docTopics = blockDocTopics[doc];
+				int oldTopic = docTopics[position];
+				
+				docCountHashes.decrement(docBase, docMask, oldTopic);
+				tokensPerTopic[oldTopic]--;
+				loadedTypeCounts[oldTopic]--;
+				typeTopicCounts.decrementTypeTopicCount(type, oldTopic);
+				
+				int topic = sampleTopicMH(type, oldTopic, docTopics, blockDocStarts[doc + 1] - blockDocStarts[doc],
+						docBase, docMask, blockDocAlphas[doc], alphaTable);
+				
+				typeTopicCounts.initializeTypeTopicCount(type, topic);
+				docTopics[position] = topic;
+				docCountHashes.increment(docBase, docMask, topic);
+				tokensPerTopic[topic]++;
+				loadedTypeCounts[topic]++;
+				
+				if (shouldRecordChanges && topic != oldTopic) {
+					recordChange(type, oldTopic, topic);
+				}
+			}
+		} finally {
+			loadedType = -1;
+			int numEntries = typeTopicCounts.numEntries(type);
+			for (int index = 0; index < numEntries; index++) {
+				loadedTypeCounts[typeTopicCounts.topicAt(type, index)] = 0;
+			}
+			typeTopicCounts.unlockType(type);
+		}
+	}
+
+	private void recordChange(int type, int oldTopic, int newTopic) {
+		if (numChanges * 3 == changes.length) {
+			changes = Arrays.copyOf(changes, changes.length * 2);
+		}
+		changes[numChanges * 3]     = type;
+		changes[numChanges * 3 + 1] = oldTopic;
+		changes[numChanges * 3 + 2] = newTopic;
+		numChanges++;
+	}
+
     /**
-     *   Adds the contribution of this worker to the global count arrays
+     *   Applies the topic changes this worker made in the last iteration
+     *   to a set of counts: the global counts or another worker's copy
      *   
-     *   @param sumTokensPerTopic   - global counts (in/out param) 
-     *   @param sumTypeTopicCounts  - global counts (in/out param)
+     *   @param targetTokensPerTopic   - (in/out param), or null to only update the type topic counts
+     *   @param targetTypeTopicCounts  - (in/out param)
     **/
-    public void aggregateCountsFromWorkersToGlobal(int[] sumTokensPerTopic, TypeTopicCounts sumTypeTopicCounts)
+    public void applyChanges(int[] targetTokensPerTopic, TypeTopicCounts targetTypeTopicCounts)
     {
-        // Handle the total-tokens-per-topic array
-        for (int topic = 0; topic < numTopics; topic++) {
-            sumTokensPerTopic[topic] += tokensPerTopic[topic];
+        for (int change = 0; change < numChanges * 3; change += 3) {
+            int type     = changes[change];
+            int oldTopic = changes[change + 1];
+            int newTopic = changes[change + 2];
+            
+            targetTypeTopicCounts.moveTypeTopicCount(type, oldTopic, newTopic);
+            
+            if (targetTokensPerTopic != null) {
+                targetTokensPerTopic[oldTopic]--;
+                targetTokensPerTopic[newTopic]++;
+            }
         }
-        
-        // Now handle the individual type topic counts
-        sumTypeTopicCounts.addCounts(typeTopicCounts);
     }
     
     /**
-     *   Resets this worker's counts to the global counts
+     *   Brings this worker's counts up to date with the global counts, by 
+     *   replaying the changes of the other workers. Its own changes are
+     *   already in its copy.
      *   
      *   @param sourceTokensPerTopic
-     *   @param sourceTypeTopicCounts
+     *   @param runnables              - all the workers, including this one
     **/
-    public void resetWorkerCountsToGlobalValues(int[] sourceTokensPerTopic, TypeTopicCounts sourceTypeTopicCounts)
+    public void applyChangesOfOtherWorkers(int[] sourceTokensPerTopic, WorkerRunnable[] runnables)
     {
         System.arraycopy(sourceTokensPerTopic, 0, tokensPerTopic, 0, numTopics);
         
-        typeTopicCounts.setCounts(sourceTypeTopicCounts);
+        for (WorkerRunnable runnable: runnables) {
+            if (runnable != this) {
+                runnable.applyChanges(null, typeTopicCounts);
+            }
+        }
     }
 }
@@ -0,0 +1,384 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package trendminer.sptempclustering;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Reads the .corpus files written by CorpusWriter. The columns are memory
+ * mapped, so any document can be read directly (get), and iterating over the
+ * corpus reads one document at a time.
+ *
+ * @author andreavarga
+ */
+public class CorpusReader implements Iterator<Instance> {
+
+    //mapped windows of at most 1GB; a multiple of 8, so no value spans two windows
+    static final int WINDOW_BITS = 30;
+
+    File fCorpusFile;
+    RandomAccessFile raf;
+    FileChannel fChannel;
+    HashMap<Integer, long[]> hmapSections = new HashMap<Integer, long[]>();
+
+    Alphabet alphData;
+    Alphabet alphTarget;
+    int iNrDocuments;
+
+    Column colTokens;
+    Column colTokenOffsets;
+    Column colFeatureIndices;
+    Column colFeatureValues;
+    Column colFeatureOffsets;
+    Column colFlags;
+    Column colNames;
+    Column colNameOffsets;
+    Column colSources;
+    Column colSourceOffsets;
+    Column colMonths;
+    Column colCities;
+
+    int iNext = 0;
+
+    /**
+     * One memory mapped section of the file.
+     */
+    static class Column {
+
+        MappedByteBuffer[] arrWindows;
+
+        Column(FileChannel fChannel, long lOffset, long lLength) throws IOException {
+            int iNrWindows = (int) ((lLength + (1L << WINDOW_BITS) - 1) >>> WINDOW_BITS);
+            arrWindows = new MappedByteBuffer[iNrWindows];
+            for (int w = 0; w < iNrWindows; w++) {
+                long lStart = (long) w << WINDOW_BITS;
+                arrWindows[w] = fChannel.map(FileChannel.MapMode.READ_ONLY, lOffset + lStart,
+                        Math.min(1L << WINDOW_BITS, lLength - lStart));
+            }
+        }
+
+        private ByteBuffer window(long lPosition) {
+            return arrWindows[(int) (lPosition >>> WINDOW_BITS)];
+        }
+
+        private static int inWindow(long lPosition) {
+            return (int) (lPosition & ((1L << WINDOW_BITS) - 1));
+        }
+
+        byte getByte(long lIdx) {
+            return window(lIdx).get(inWindow(lIdx));
+        }
+
+        int getInt(long lIdx) {
+            long lPosition = lIdx << 2;
+            return window(lPosition).getInt(inWindow(lPosition));
+        }
+
+        long getLong(long lIdx) {
+            long lPosition = lIdx << 3;
+            return window(lPosition).getLong(inWindow(lPosition));
+        }
+
+        double getDouble(long lIdx) {
+            long lPosition = lIdx << 3;
+            return window(lPosition).getDouble(inWindow(lPosition));
+        }
+
+        String getString(long lStart, long lEnd) throws IOException {
+            byte[] arrBytes = new byte[(int) (lEnd - lStart)];
+            for (int i = 0; i < arrBytes.length; i++) {
+                arrBytes[i] = getByte(lStart + i);
+            }
+            return new String(arrBytes, "UTF-8");
+        }
+    }
+
+    public CorpusReader(File fCorpusFile) throws IOException {
+        this.fCorpusFile = fCorpusFile;
+        raf = new RandomAccessFile(fCorpusFile, "r");
+        fChannel = raf.getChannel();
+
+        checkHeader(raf.readInt(), raf.readInt(), fCorpusFile);
+        raf.seek(raf.length() - 12);
+        long lTableOffset = raf.readLong();
+        if (raf.readInt() != CorpusWriter.MAGIC) {
+            throw new IOException(fCorpusFile + " is truncated");
+        }
+        raf.seek(lTableOffset);
+        int iNrSections = raf.readInt();
+        for (int i = 0; i < iNrSections; i++) {
+            int iTag = raf.readInt();
+            hmapSections.put(iTag, new long[]{raf.readLong(), raf.readLong()});
+        }
+
+        alphData = readAlphabet(CorpusWriter.DATA_ALPHABET);
+        alphTarget = readAlphabet(CorpusWriter.TARGET_ALPHABET);
+
+        colTokens = mapColumn(CorpusWriter.TOKENS);
+        colTokenOffsets = mapColumn(CorpusWriter.TOKEN_OFFSETS);
+        colFeatureIndices = mapColumn(CorpusWriter.FEATURE_INDICES);
+        colFeatureValues = mapColumn(CorpusWriter.FEATURE_VALUES);
+        colFeatureOffsets = mapColumn(CorpusWriter.FEATURE_OFFSETS);
+        colFlags = mapColumn(CorpusWriter.FLAGS);
+        colNames = mapColumn(CorpusWriter.NAMES);
+        colNameOffsets = mapColumn(CorpusWriter.NAME_OFFSETS);
+        colSources = mapColumn(CorpusWriter.SOURCES);
+        colSourceOffsets = mapColumn(CorpusWriter.SOURCE_OFFSETS);
+        if (hmapSections.containsKey(CorpusWriter.MONTHS)) {
+            colMonths = mapColumn(CorpusWriter.MONTHS);
+            colCities = mapColumn(CorpusWriter.CITIES);
+        }
+        iNrDocuments = (int) (section(CorpusWriter.FLAGS)[1]);
+    }
+
+    private static void checkHeader(int iMagic, int iVersion, File fCorpusFile) throws IOException {
+        if (iMagic != CorpusWriter.MAGIC) {
+            throw new IOException(fCorpusFile + " is not a corpus file");
+        }
+        if (iVersion != CorpusWriter.VERSION) {
+            throw new IOException("Expected corpus version " + CorpusWriter.VERSION
+                    + " but found " + iVersion + " in " + fCorpusFile + ", import the data again");
+        }
+    }
+
+    private long[] section(int iTag) throws IOException {
+        long[] arrSection = hmapSections.get(iTag);
+        if (arrSection == null) {
+            throw new IOException("Section " + iTag + " is missing from " + fCorpusFile);
+        }
+        return arrSection;
+    }
+
+    private Column mapColumn(int iTag) throws IOException {
+        long[] arrSection = section(iTag);
+        return new Column(fChannel, arrSection[0], arrSection[1]);
+    }
+
+    private Alphabet readAlphabet(int iTag) throws IOException {
+        long[] arrSection = section(iTag);
+        fChannel.position(arrSection[0]);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fChannel), 1 << 16));
+        int iSize = in.readInt();
+        Alphabet alphabet = new Alphabet();
+        for (int i = 0; i < iSize; i++) {
+            alphabet.lookupIndex(in.readUTF(), true);
+        }
+        return alphabet;
+    }
+
+    public Alphabet getDataAlphabet() {
+        return alphData;
+    }
+
+    public Alphabet getTargetAlphabet() {
+        return alphTarget;
+    }
+
+    public int size() {
+        return iNrDocuments;
+    }
+
+    /**
+     * @return the name of document iDoc, without reading its tokens
+     */
+    public String getName(int iDoc) throws IOException {
+        if ((colFlags.getByte(iDoc) & CorpusWriter.NO_NAME) != 0) {
+            return null;
+        }
+        return colNames.getString(colNameOffsets.getLong(iDoc), colNameOffsets.getLong(iDoc + 1));
+    }
+
+    /**
+     * @return the source of document iDoc, without reading its tokens
+     */
+    public String getSource(int iDoc) throws IOException {
+        if ((colFlags.getByte(iDoc) & CorpusWriter.NO_SOURCE) != 0) {
+            return null;
+        }
+        return colSources.getString(colSourceOffsets.getLong(iDoc), colSourceOffsets.getLong(iDoc + 1));
+    }
+
+    /**
+     * @return the month (yyyymm) of document iDoc, or -1 if unknown
+     */
+    public int getMonth(int iDoc) {
+        return colMonths == null ? -1 : colMonths.getInt(iDoc);
+    }
+
+    /**
+     * @return the city of document iDoc, or -1 if unknown
+     */
+    public int getCity(int iDoc) {
+        return colCities == null ? -1 : colCities.getInt(iDoc);
+    }
+
+    /**
+     * @return document iDoc (0 based, in the order they were written)
+     */
+    public Instance get(int iDoc) throws IOException {
+        int iFlags = colFlags.getByte(iDoc);
+
+        long lTokenStart = colTokenOffsets.getLong(iDoc);
+        int[] arrTokens = new int[(int) (colTokenOffsets.getLong(iDoc + 1) - lTokenStart)];
+        for (int i = 0; i < arrTokens.length; i++) {
+            arrTokens[i] = colTokens.getInt(lTokenStart + i);
+        }
+
+        FeatureVector features = null;
+        if ((iFlags & CorpusWriter.NO_TARGET) == 0) {
+            long lFeatureStart = colFeatureOffsets.getLong(iDoc);
+            int iNrLocations = (int) (colFeatureOffsets.getLong(iDoc + 1) - lFeatureStart);
+            int[] arrIndices = new int[iNrLocations];
+            double[] arrValues = new double[iNrLocations];
+            for (int i = 0; i < iNrLocations; i++) {
+                arrIndices[i] = colFeatureIndices.getInt(lFeatureStart + i);
+                arrValues[i] = colFeatureValues.getDouble(lFeatureStart + i);
+            }
+            features = new FeatureVector(alphTarget, arrIndices, arrValues);
+        }
+
+        String sName = getName(iDoc);
+        String sSource = getSource(iDoc);
+
+        return new Instance(new FeatureSequence(alphData, arrTokens), features, sName, sSource);
+    }
+
+    public boolean hasNext() {
+        return iNext < iNrDocuments;
+    }
+
+    public Instance next() {
+        if (!hasNext()) {
+            throw new IllegalStateException("No more documents in the corpus");
+        }
+        try {
+            return get(iNext++);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the next document", e);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * @return a pipe carrying the corpus alphabets, for InstanceLists built from it
+     */
+    public Noop newPipe() {
+        return new Noop(alphData, alphTarget);
+    }
+
+    public static boolean isCorpusFile(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            return f.length() >= 4 && in.readInt() == CorpusWriter.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads a whole .corpus file into an InstanceList.
+     */
+    public static InstanceList load(File f) throws IOException {
+        CorpusReader reader = new CorpusReader(f);
+        InstanceList instances = new InstanceList(reader.newPipe());
+        while (reader.hasNext()) {
+            instances.add(reader.next());
+        }
+        reader.close();
+        return instances;
+    }
+
+    /**
+     * Loads only the listed documents of a .corpus file, reading nothing of the others.
+     */
+    public static InstanceList load(File f, int[] arrDocIds) throws IOException {
+        CorpusReader reader = new CorpusReader(f);
+        InstanceList instances = new InstanceList(reader.newPipe());
+        for (int iDoc : arrDocIds) {
+            if (iDoc < 0 || iDoc >= reader.size()) {
+                throw new IOException("Document " + iDoc + " is not in " + f);
+            }
+            instances.add(reader.get(iDoc));
+        }
+        reader.close();
+        return instances;
+    }
+
+    /**
+     * Loads either a .corpus file or a serialized InstanceList (.mallet).
+     */
+    public static InstanceList loadInstances(File f) throws IOException {
+        if (isCorpusFile(f)) {
+            return load(f);
+        }
+        return InstanceList.load(f);
+    }
+
+    /**
+     * Loads the documents of an index file (see CreateTrainTestInstances) from
+     * a .corpus file, or the whole file if sIndexFile is empty.
+     */
+    public static InstanceList loadInstances(File f, String sIndexFile) throws IOException {
+        if (sIndexFile.length() == 0) {
+            return loadInstances(f);
+        }
+        if (!isCorpusFile(f)) {
+            throw new IOException("Index files can only be used with a .corpus file, not " + f);
+        }
+        return load(f, readIndex(new File(sIndexFile)));
+    }
+
+    /**
+     * Reads an index file: one document id per line.
+     */
+    public static int[] readIndex(File fIndex) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(fIndex));
+        int[] arrDocIds = new int[1024];
+        int iNrDocIds = 0;
+        try {
+            String sLine;
+            while ((sLine = in.readLine()) != null) {
+                sLine = sLine.trim();
+                if (sLine.length() == 0) {
+                    continue;
+                }
+                if (iNrDocIds == arrDocIds.length) {
+                    arrDocIds = Arrays.copyOf(arrDocIds, 2 * arrDocIds.length);
+                }
+                arrDocIds[iNrDocIds++] = Integer.parseInt(sLine);
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.copyOf(arrDocIds, iNrDocIds);
+    }
+}
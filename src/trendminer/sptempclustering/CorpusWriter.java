@@ -0,0 +1,272 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package trendminer.sptempclustering;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes piped instances one at a time to a .corpus file, so that the importer
+ * never has to keep the whole InstanceList in memory.
+ *
+ * The file is columnar: the token ids of all the documents, the feature
+ * indices, the feature values, the names, ... are each stored as one
+ * contiguous section, with per document offsets, so that CorpusReader can
+ * memory map the sections and read any document directly. Layout:
+ *
+ * MAGIC, VERSION, the TOKENS section, the other sections (each starting at a
+ * multiple of 8), the section table (count, then tag, offset and length of
+ * each section), the offset of the section table, MAGIC.
+ *
+ * Every document also has its month (yyyymm) and city, or -1 if unknown.
+ *
+ * The alphabets are stored once, as their lists of entries. The tokens are
+ * written straight into the file, the other columns go to temporary files
+ * that are appended on close, as the number of documents is not known in advance.
+ *
+ * @author andreavarga
+ */
+public class CorpusWriter {
+
+    public static final int MAGIC = 0x544d4350;
+    public static final int VERSION = 2;
+
+    //sections; int columns hold ints, offsets columns hold one long per document plus one
+    static final int TOKENS = 1;
+    static final int TOKEN_OFFSETS = 2;
+    static final int FEATURE_INDICES = 3;
+    static final int FEATURE_VALUES = 4;
+    static final int FEATURE_OFFSETS = 5;
+    static final int FLAGS = 6;
+    static final int NAMES = 7;
+    static final int NAME_OFFSETS = 8;
+    static final int SOURCES = 9;
+    static final int SOURCE_OFFSETS = 10;
+    static final int DATA_ALPHABET = 11;
+    static final int TARGET_ALPHABET = 12;
+    static final int MONTHS = 13;
+    static final int CITIES = 14;
+
+    //per document flags
+    static final int NO_NAME = 1;
+    static final int NO_SOURCE = 2;
+    static final int NO_TARGET = 4;
+
+    File fCorpusFile;
+    FileOutputStream fCorpus;
+    DataOutputStream fTokens;
+    List<Column> lstColumns = new ArrayList<Column>();
+    Column colTokenOffsets;
+    Column colFeatureIndices;
+    Column colFeatureValues;
+    Column colFeatureOffsets;
+    Column colFlags;
+    Column colNames;
+    Column colNameOffsets;
+    Column colSources;
+    Column colSourceOffsets;
+    Column colMonths;
+    Column colCities;
+
+    long lNrTokens = 0;
+    long lNrFeatures = 0;
+    long lNameBytes = 0;
+    long lSourceBytes = 0;
+    int iNrDocuments = 0;
+
+    /**
+     * A section that is written to a temporary file until close.
+     */
+    static class Column {
+
+        int iTag;
+        File fTemp;
+        DataOutputStream out;
+
+        Column(int iTag, File fCorpusFile) throws IOException {
+            this.iTag = iTag;
+            fTemp = File.createTempFile(fCorpusFile.getName() + "." + iTag + ".", ".tmp",
+                    fCorpusFile.getAbsoluteFile().getParentFile());
+            fTemp.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fTemp), 1 << 16));
+        }
+    }
+
+    public CorpusWriter(File fCorpusFile) throws IOException {
+        this.fCorpusFile = fCorpusFile;
+        fCorpus = new FileOutputStream(fCorpusFile);
+        fTokens = new DataOutputStream(new BufferedOutputStream(fCorpus, 1 << 16));
+        fTokens.writeInt(MAGIC);
+        fTokens.writeInt(VERSION);
+
+        colTokenOffsets = addColumn(TOKEN_OFFSETS);
+        colFeatureIndices = addColumn(FEATURE_INDICES);
+        colFeatureValues = addColumn(FEATURE_VALUES);
+        colFeatureOffsets = addColumn(FEATURE_OFFSETS);
+        colFlags = addColumn(FLAGS);
+        colNames = addColumn(NAMES);
+        colNameOffsets = addColumn(NAME_OFFSETS);
+        colSources = addColumn(SOURCES);
+        colSourceOffsets = addColumn(SOURCE_OFFSETS);
+        colMonths = addColumn(MONTHS);
+        colCities = addColumn(CITIES);
+
+        colTokenOffsets.out.writeLong(0);
+        colFeatureOffsets.out.writeLong(0);
+        colNameOffsets.out.writeLong(0);
+        colSourceOffsets.out.writeLong(0);
+    }
+
+    private Column addColumn(int iTag) throws IOException {
+        Column column = new Column(iTag, fCorpusFile);
+        lstColumns.add(column);
+        return column;
+    }
+
+    /**
+     * Appends one instance, which must already have been piped
+     * (FeatureSequence data, FeatureVector or null target), without a month and city.
+     */
+    public void write(Instance instance) throws IOException {
+        write(instance, -1, -1);
+    }
+
+    /**
+     * Appends one piped instance together with the month (yyyymm) and the
+     * city of the document, which the time based splits select on.
+     */
+    public void write(Instance instance, int iMonth, int iCityIdx) throws IOException {
+        int iFlags = 0;
+
+        FeatureSequence tokens = (FeatureSequence) instance.getData();
+        int iLength = tokens.getLength();
+        for (int i = 0; i < iLength; i++) {
+            fTokens.writeInt(tokens.getIndexAtPosition(i));
+        }
+        lNrTokens += iLength;
+        colTokenOffsets.out.writeLong(lNrTokens);
+
+        FeatureVector features = (FeatureVector) instance.getTarget();
+        if (features == null) {
+            iFlags |= NO_TARGET;
+        } else {
+            int iNrLocations = features.numLocations();
+            for (int i = 0; i < iNrLocations; i++) {
+                colFeatureIndices.out.writeInt(features.indexAtLocation(i));
+                colFeatureValues.out.writeDouble(features.valueAtLocation(i));
+            }
+            lNrFeatures += iNrLocations;
+        }
+        colFeatureOffsets.out.writeLong(lNrFeatures);
+
+        if (instance.getName() == null) {
+            iFlags |= NO_NAME;
+        } else {
+            byte[] arrName = instance.getName().toString().getBytes("UTF-8");
+            colNames.out.write(arrName);
+            lNameBytes += arrName.length;
+        }
+        colNameOffsets.out.writeLong(lNameBytes);
+
+        if (instance.getSource() == null) {
+            iFlags |= NO_SOURCE;
+        } else {
+            byte[] arrSource = instance.getSource().toString().getBytes("UTF-8");
+            colSources.out.write(arrSource);
+            lSourceBytes += arrSource.length;
+        }
+        colSourceOffsets.out.writeLong(lSourceBytes);
+
+        colFlags.out.writeByte(iFlags);
+        colMonths.out.writeInt(iMonth);
+        colCities.out.writeInt(iCityIdx);
+        iNrDocuments++;
+    }
+
+    public int size() {
+        return iNrDocuments;
+    }
+
+    /**
+     * Appends the other sections, the alphabets and the section table, and closes the file.
+     */
+    public void close(Alphabet alphData, Alphabet alphTarget) throws IOException {
+        FileChannel fChannel = fCorpus.getChannel();
+        List<long[]> lstSections = new ArrayList<long[]>();
+
+        fTokens.flush();
+        lstSections.add(new long[]{TOKENS, 8, fChannel.position() - 8});
+
+        for (Column column : lstColumns) {
+            column.out.close();
+            long lOffset = pad(fChannel);
+            FileInputStream fIn = new FileInputStream(column.fTemp);
+            FileChannel fTempChannel = fIn.getChannel();
+            long lLength = fTempChannel.size();
+            long lDone = 0;
+            while (lDone < lLength) {
+                lDone += fTempChannel.transferTo(lDone, lLength - lDone, fChannel);
+            }
+            fIn.close();
+            column.fTemp.delete();
+            lstSections.add(new long[]{column.iTag, lOffset, lLength});
+        }
+
+        lstSections.add(writeAlphabet(DATA_ALPHABET, alphData, fChannel));
+        lstSections.add(writeAlphabet(TARGET_ALPHABET, alphTarget, fChannel));
+
+        long lTableOffset = pad(fChannel);
+        fTokens.writeInt(lstSections.size());
+        for (long[] arrSection : lstSections) {
+            fTokens.writeInt((int) arrSection[0]);
+            fTokens.writeLong(arrSection[1]);
+            fTokens.writeLong(arrSection[2]);
+        }
+        fTokens.writeLong(lTableOffset);
+        fTokens.writeInt(MAGIC);
+        fTokens.close();
+    }
+
+    private long[] writeAlphabet(int iTag, Alphabet alphabet, FileChannel fChannel) throws IOException {
+        long lOffset = pad(fChannel);
+        fTokens.writeInt(alphabet.size());
+        for (int i = 0; i < alphabet.size(); i++) {
+            Object entry = alphabet.lookupObject(i);
+            if (!(entry instanceof String)) {
+                throw new IOException("Only alphabets of strings can be stored in a corpus file");
+            }
+            fTokens.writeUTF((String) entry);
+        }
+        fTokens.flush();
+        return new long[]{iTag, lOffset, fChannel.position() - lOffset};
+    }
+
+    /**
+     * Flushes and pads the file to a multiple of 8 bytes.
+     *
+     * @return the padded position
+     */
+    private long pad(FileChannel fChannel) throws IOException {
+        fTokens.flush();
+        long lPosition = fChannel.position();
+        while (lPosition % 8 != 0) {
+            fTokens.writeByte(0);
+            lPosition++;
+        }
+        fTokens.flush();
+        return lPosition;
+    }
+}
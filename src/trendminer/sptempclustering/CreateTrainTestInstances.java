@@ -4,10 +4,21 @@
  */
 package trendminer.sptempclustering;
 
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
 import cc.mallet.util.CommandOption;
 import cc.mallet.util.Randoms;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
 
 
 /**
@@ -33,6 +44,267 @@ public class CreateTrainTestInstances {
             "the percentage to split the instancesMalletFile into training between the range of 0 .. 1",
             null);
 
+    static CommandOption.Boolean streaming =
+            new CommandOption.Boolean(CreateTrainTestInstances.class,
+            "streaming", "true|false",
+            false,
+            false,
+            "read the documents one at a time and assign each to train or test by a seeded hash of its name "
+                    + "(or source), writing the two .corpus files as it goes instead of loading the whole list",
+            null);
+
+    static CommandOption.String splitMode =
+            new CommandOption.String(CreateTrainTestInstances.class,
+            "splitMode", "proportional|kfold|time",
+            false,
+            "proportional",
+            "proportional writes a training and a test file; kfold and time only write index files "
+                    + "(document ids) over the .corpus file, to be passed to the clustering with --trainIndex and --testIndex",
+            null);
+
+    static CommandOption.Integer folds =
+            new CommandOption.Integer(CreateTrainTestInstances.class,
+            "folds", "",
+            false,
+            5,
+            "the number of folds of the kfold split; the fold of a document is given by a seeded hash of its name",
+            null);
+
+    static CommandOption.Integer lastTrainingMonth =
+            new CommandOption.Integer(CreateTrainTestInstances.class,
+            "lastTrainingMonth", "yyyymm",
+            false,
+            0,
+            "time split: train on the months up to this one and test on the next month of the data; "
+                    + "0 writes such a split for every month but the last",
+            null);
+
+    static CommandOption.Integer seed =
+            new CommandOption.Integer(CreateTrainTestInstances.class,
+            "seed", "",
+            false,
+            1,
+            "the seed of the hash used by the streaming split",
+            null);
+
+
+    /**
+     * @return a number in [0, 1) that depends only on the key and the seed
+     */
+    static double hashFraction(String sKey, int iSeed) {
+        long lHash = 0xcbf29ce484222325L ^ iSeed;
+        for (int i = 0; i < sKey.length(); i++) {
+            lHash = (lHash ^ sKey.charAt(i)) * 0x100000001b3L;
+        }
+        //final mix of MurmurHash3, so that every bit of the key reaches the top bits
+        lHash ^= lHash >>> 33;
+        lHash *= 0xff51afd7ed558ccdL;
+        lHash ^= lHash >>> 33;
+        lHash *= 0xc4ceb9fe1a85ec53L;
+        lHash ^= lHash >>> 33;
+        return (lHash >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * @return the key of the document for the hash split: its name, else its
+     * source, else its position
+     */
+    static String splitKey(Instance instance, long lPosition) {
+        return splitKey(instance.getName(), instance.getSource(), lPosition);
+    }
+
+    static String splitKey(Object name, Object source, long lPosition) {
+        if (name != null) {
+            return name.toString();
+        }
+        if (source != null) {
+            return source.toString();
+        }
+        return Long.toString(lPosition);
+    }
+
+    /**
+     * Splits without holding the documents in memory: a .corpus input is read
+     * one document at a time, and both outputs are .corpus files written
+     * incrementally. The split is the same on every run with the same seed.
+     */
+    static void splitStreaming(File fInstances, boolean bCorpus, File fTrain, File fTest) throws IOException {
+        Iterator<Instance> itInstances;
+        CorpusReader reader = null;
+        Alphabet alphData;
+        Alphabet alphTarget;
+        if (bCorpus) {
+            reader = new CorpusReader(fInstances);
+            itInstances = reader;
+            alphData = reader.getDataAlphabet();
+            alphTarget = reader.getTargetAlphabet();
+        } else {
+            System.out.println("A .mallet file can only be loaded as a whole, import with --streaming true to avoid this");
+            InstanceList insAll = InstanceList.load(fInstances);
+            itInstances = insAll.iterator();
+            alphData = insAll.getDataAlphabet();
+            alphTarget = insAll.getTargetAlphabet();
+        }
+
+        CorpusWriter trainWriter = new CorpusWriter(fTrain);
+        CorpusWriter testWriter = new CorpusWriter(fTest);
+        long lPosition = 0;
+        while (itInstances.hasNext()) {
+            Instance instance = itInstances.next();
+            int iMonth = reader != null ? reader.getMonth((int) lPosition) : -1;
+            int iCityIdx = reader != null ? reader.getCity((int) lPosition) : -1;
+            if (hashFraction(splitKey(instance, lPosition), seed.value) < trainingPortion.value) {
+                trainWriter.write(instance, iMonth, iCityIdx);
+            } else {
+                testWriter.write(instance, iMonth, iCityIdx);
+            }
+            lPosition++;
+        }
+        trainWriter.close(alphData, alphTarget);
+        testWriter.close(alphData, alphTarget);
+        if (reader != null) {
+            reader.close();
+        }
+        System.out.println("Training documents: " + trainWriter.size() + ", test documents: " + testWriter.size());
+    }
+
+    /**
+     * Writes the index files of a k-fold split, fold k being the test set of
+     * <corpus>.fold<k>test.idx and the rest the training set of <corpus>.fold<k>train.idx.
+     * Only the names of the documents are read.
+     */
+    static void splitFolds(File fCorpus) throws IOException {
+        CorpusReader reader = new CorpusReader(fCorpus);
+        int iNrFolds = folds.value;
+        PrintStream[] arrTrain = new PrintStream[iNrFolds];
+        PrintStream[] arrTest = new PrintStream[iNrFolds];
+        for (int k = 0; k < iNrFolds; k++) {
+            arrTrain[k] = indexStream(fCorpus, ".fold" + k + "train.idx");
+            arrTest[k] = indexStream(fCorpus, ".fold" + k + "test.idx");
+        }
+
+        int[] arrFoldSizes = new int[iNrFolds];
+        for (int iDoc = 0; iDoc < reader.size(); iDoc++) {
+            String sKey = splitKey(reader.getName(iDoc), reader.getSource(iDoc), iDoc);
+            int iFold = Math.min(iNrFolds - 1, (int) (hashFraction(sKey, seed.value) * iNrFolds));
+            arrFoldSizes[iFold]++;
+            for (int k = 0; k < iNrFolds; k++) {
+                (k == iFold ? arrTest[k] : arrTrain[k]).println(iDoc);
+            }
+        }
+        reader.close();
+
+        for (int k = 0; k < iNrFolds; k++) {
+            arrTrain[k].close();
+            arrTest[k].close();
+            System.out.println("Fold " + k + ": " + arrFoldSizes[k] + " test documents");
+        }
+    }
+
+    /**
+     * Writes the index files of the time splits: for a month M, the documents
+     * of the months up to M go to <corpus>.upto<M>train.idx and those of the
+     * next month of the data to <corpus>.upto<M>test.idx. Only the months of
+     * the documents are read.
+     */
+    static void splitByTime(File fCorpus) throws IOException {
+        CorpusReader reader = new CorpusReader(fCorpus);
+        TreeSet<Integer> setMonths = new TreeSet<Integer>();
+        for (int iDoc = 0; iDoc < reader.size(); iDoc++) {
+            setMonths.add(reader.getMonth(iDoc));
+        }
+        if (setMonths.contains(-1)) {
+            reader.close();
+            throw new IOException(fCorpus + " does not hold the months of its documents, import it again");
+        }
+
+        List<Integer> lstLastMonths = new ArrayList<Integer>();
+        if (lastTrainingMonth.value > 0) {
+            if (setMonths.higher(lastTrainingMonth.value) == null) {
+                reader.close();
+                throw new IOException("There is no month after " + lastTrainingMonth.value + " in " + fCorpus);
+            }
+            lstLastMonths.add(lastTrainingMonth.value);
+        } else {
+            lstLastMonths.addAll(setMonths.headSet(setMonths.last()));
+        }
+
+        int iNrSplits = lstLastMonths.size();
+        int[] arrLastMonths = new int[iNrSplits];
+        int[] arrTestMonths = new int[iNrSplits];
+        PrintStream[] arrTrain = new PrintStream[iNrSplits];
+        PrintStream[] arrTest = new PrintStream[iNrSplits];
+        for (int s = 0; s < iNrSplits; s++) {
+            arrLastMonths[s] = lstLastMonths.get(s);
+            arrTestMonths[s] = setMonths.higher(arrLastMonths[s]);
+            arrTrain[s] = indexStream(fCorpus, ".upto" + arrLastMonths[s] + "train.idx");
+            arrTest[s] = indexStream(fCorpus, ".upto" + arrLastMonths[s] + "test.idx");
+        }
+
+        for (int iDoc = 0; iDoc < reader.size(); iDoc++) {
+            int iMonth = reader.getMonth(iDoc);
+            for (int s = 0; s < iNrSplits; s++) {
+                if (iMonth <= arrLastMonths[s]) {
+                    arrTrain[s].println(iDoc);
+                } else if (iMonth == arrTestMonths[s]) {
+                    arrTest[s].println(iDoc);
+                }
+            }
+        }
+        reader.close();
+
+        for (int s = 0; s < iNrSplits; s++) {
+            arrTrain[s].close();
+            arrTest[s].close();
+            System.out.println("Train up to " + arrLastMonths[s] + ", test on " + arrTestMonths[s]);
+        }
+    }
+
+    private static PrintStream indexStream(File fCorpus, String sSuffix) throws IOException {
+        return new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(fCorpus.getAbsolutePath() + sSuffix), 1 << 16));
+    }
+
+    /**
+     * Splits a .corpus file at random, with the training portion of the
+     * documents in fTrain. Each document keeps its month and city, so both
+     * outputs can be split again with --splitMode time.
+     */
+    static void splitCorpus(File fInstances, File fTrain, File fTest) throws IOException {
+        CorpusReader reader = new CorpusReader(fInstances);
+        int iNrDocs = reader.size();
+        int[] arrDocIds = new int[iNrDocs];
+        for (int iDoc = 0; iDoc < iNrDocs; iDoc++) {
+            arrDocIds[iDoc] = iDoc;
+        }
+        Randoms random = new Randoms();
+        for (int i = iNrDocs - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int iDocId = arrDocIds[i];
+            arrDocIds[i] = arrDocIds[j];
+            arrDocIds[j] = iDocId;
+        }
+
+        // both outputs keep the order of the input
+        int iNrTrain = (int) Math.round(trainingPortion.value * iNrDocs);
+        Arrays.sort(arrDocIds, 0, iNrTrain);
+        Arrays.sort(arrDocIds, iNrTrain, iNrDocs);
+
+        System.out.println("Saving training files to " + fTrain);
+        write(reader, arrDocIds, 0, iNrTrain, fTrain);
+        System.out.println("Saving test files to " + fTest);
+        write(reader, arrDocIds, iNrTrain, iNrDocs, fTest);
+        reader.close();
+    }
+
+    private static void write(CorpusReader reader, int[] arrDocIds, int iFrom, int iTo, File f) throws IOException {
+        CorpusWriter writer = new CorpusWriter(f);
+        for (int i = iFrom; i < iTo; i++) {
+            int iDoc = arrDocIds[i];
+            writer.write(reader.get(iDoc), reader.getMonth(iDoc), reader.getCity(iDoc));
+        }
+        writer.close(reader.getDataAlphabet(), reader.getTargetAlphabet());
+    }
 
     public static void main(String[] args) {
         try {
@@ -40,30 +312,56 @@ public class CreateTrainTestInstances {
                     "Splitting the mallet instances into train and test files - developed between Dec 2013 - April 2014");
             CommandOption.process(CreateTrainTestInstances.class, args);
             CommandOption.printOptionValues(CreateTrainTestInstances.class);
+            if (!splitMode.value.equals("proportional") && !splitMode.value.equals("kfold")
+                    && !splitMode.value.equals("time")) {
+                throw new IllegalArgumentException("Unknown split mode " + splitMode.value);
+            }
 
-            InstanceList insAll = InstanceList.load(new File(
-                    instancesMalletFile.value
-                    ));
+            File fInstances = new File(instancesMalletFile.value);
+            boolean bCorpus = CorpusReader.isCorpusFile(fInstances);
+            String sExtension = bCorpus ? ".corpus" : ".mallet";
+
+            if (splitMode.value.equals("kfold") || splitMode.value.equals("time")) {
+                if (!bCorpus) {
+                    throw new IOException("The " + splitMode.value
+                            + " split needs a .corpus file, import with --streaming true");
+                }
+                if (splitMode.value.equals("kfold")) {
+                    splitFolds(fInstances);
+                } else {
+                    splitByTime(fInstances);
+                }
+                return;
+            }
+
+            if (streaming.value) {
+                String sInstancesTrainFileName = fInstances.getAbsoluteFile() + "train.corpus";
+                String sInstancesTestFileName = fInstances.getAbsoluteFile() + "test.corpus";
+                System.out.println("Saving training files to " + sInstancesTrainFileName
+                        + " and test files to " + sInstancesTestFileName);
+                splitStreaming(fInstances, bCorpus,
+                        new File(sInstancesTrainFileName), new File(sInstancesTestFileName));
+                return;
+            }
+
+            String sInstancesTrainFileName = fInstances.getAbsoluteFile() + "train" + sExtension;
+            
+            String sInstancesTestFileName = fInstances.getAbsoluteFile() + "test" + sExtension;
+
+            if (bCorpus) {
+                splitCorpus(fInstances, new File(sInstancesTrainFileName), new File(sInstancesTestFileName));
+                return;
+            }
+
+            InstanceList insAll = InstanceList.load(fInstances);
             InstanceList[] insSRC_split = insAll.split(new Randoms(),
                             new double[]{trainingPortion.value,
                                 1 - trainingPortion.value});
             
-            String sInstancesTrainFileName = new File(
-                    instancesMalletFile.value
-                    ).getAbsoluteFile() +"train.mallet";
-            
-            String sInstancesTestFileName = new File(
-                    instancesMalletFile.value
-                    ).getAbsoluteFile() +"test.mallet";            
-            
             System.out.println("Saving training files to "+sInstancesTrainFileName);
-            insSRC_split[0].save(new File(
-                    sInstancesTrainFileName
-                    ));
+            insSRC_split[0].save(new File(sInstancesTrainFileName));
             System.out.println("Saving test files to "+sInstancesTestFileName);
-            insSRC_split[1].save(new File(
-                    sInstancesTestFileName
-                    ));            
+            insSRC_split[1].save(new File(sInstancesTestFileName));
             
         } catch (Exception e) {
             e.printStackTrace();
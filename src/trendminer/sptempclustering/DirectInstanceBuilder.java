@@ -0,0 +1,76 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package trendminer.sptempclustering;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Builds piped instances straight from dictionary ids, without joining the
+ * words into a string and tokenizing it again. The result is the same as
+ * running the string through the import pipe: the data alphabet gets the
+ * words in the order they first occur. A target string still goes through the
+ * first (TargetStringToFeatures) pipe; a finished FeatureVector is used as is.
+ *
+ * Not thread-safe: the instances have to be built in document order, by one thread.
+ *
+ * @author andreavarga
+ */
+public class DirectInstanceBuilder {
+
+    Alphabet alphDictionary;
+    Alphabet alphData;
+    Pipe targetPipe;
+    //dictionary id -> data alphabet index, -1 until the word first occurs
+    int[] arrDicToData;
+
+    public DirectInstanceBuilder(Alphabet alphDictionary, SerialPipes instancePipe) {
+        this.alphDictionary = alphDictionary;
+        this.alphData = instancePipe.getDataAlphabet();
+        this.targetPipe = instancePipe.getPipe(0);
+        arrDicToData = new int[alphDictionary.size()];
+        Arrays.fill(arrDicToData, -1);
+    }
+
+    /**
+     * @param arrDicIds the dictionary ids of the document, replaced in place by
+     * data alphabet indices
+     */
+    public Instance instanceFrom(int[] arrDicIds, Object features, String sName) {
+        for (int i = 0; i < arrDicIds.length; i++) {
+            int iDicIdx = arrDicIds[i];
+            int iDataIdx = arrDicToData[iDicIdx];
+            if (iDataIdx == -1) {
+                iDataIdx = alphData.lookupIndex(alphDictionary.lookupObject(iDicIdx), true);
+                arrDicToData[iDicIdx] = iDataIdx;
+            }
+            arrDicIds[i] = iDataIdx;
+        }
+        Instance instance = new Instance(new FeatureSequence(alphData, arrDicIds), features, sName, null);
+        if (features instanceof FeatureVector) {
+            return instance;
+        }
+        return targetPipe.pipe(instance);
+    }
+
+    /**
+     * @return true if the tokenizer would keep every dictionary word as exactly
+     * one token, i.e. building the sequences directly gives the same result
+     */
+    public static boolean isOneTokenPerWord(Alphabet alphDictionary, Pattern tokenPattern) {
+        for (int i = 0; i < alphDictionary.size(); i++) {
+            if (!tokenPattern.matcher(alphDictionary.lookupObject(i).toString()).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
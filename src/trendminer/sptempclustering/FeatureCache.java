@@ -0,0 +1,81 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package trendminer.sptempclustering;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Instance;
+
+/**
+ * The document features depend only on the city and on the date, so they are
+ * computed once per city and once per (in range) date, as sparse
+ * FeatureVectors, and every document only concatenates the two.
+ *
+ * The vectors are built with the target pipe from the same feature strings as
+ * before. The date vectors are computed up front, the city vectors when the
+ * city first occurs (as not every city needs to be in GEO). The target
+ * alphabet already holds all the feature names (see
+ * ImportTrendMinerData.addFeatureNames), so building them only looks names
+ * up, and features() can be called from several threads.
+ *
+ * @author andreavarga
+ */
+public class FeatureCache {
+
+    Pipe targetPipe;
+    FeatureVector[] arrCityFeatures;
+    FeatureVector[] arrDateFeatures;
+
+    public FeatureCache(Pipe targetPipe, int iNrCities, int[] arrDateYear, int[] arrDateMonth) {
+        this.targetPipe = targetPipe;
+        arrCityFeatures = new FeatureVector[iNrCities];
+
+        arrDateFeatures = new FeatureVector[arrDateYear.length];
+        for (int iDateIdx = 0; iDateIdx < arrDateYear.length; iDateIdx++) {
+            if (SoraVsDocuments.isInRange(arrDateYear, iDateIdx)) {
+                arrDateFeatures[iDateIdx] = toFeatureVector(targetPipe,
+                        ImportTrendMinerData.dateFeatures(iDateIdx,
+                        arrDateMonth[iDateIdx], arrDateYear[iDateIdx]));
+            }
+        }
+    }
+
+    private static FeatureVector toFeatureVector(Pipe targetPipe, String sFeatures) {
+        if (sFeatures.trim().length() == 0) {
+            return new FeatureVector(targetPipe.getTargetAlphabet(), new int[0], new double[0]);
+        }
+        return (FeatureVector) targetPipe.pipe(new Instance(null, sFeatures, null, null)).getTarget();
+    }
+
+    private synchronized FeatureVector cityFeatures(int iCityIdx) {
+        if (arrCityFeatures[iCityIdx] == null) {
+            arrCityFeatures[iCityIdx] = toFeatureVector(targetPipe,
+                    ImportTrendMinerData.cityFeatures(iCityIdx));
+        }
+        return arrCityFeatures[iCityIdx];
+    }
+
+    /**
+     * @return the features of a document of city iCityIdx on date iDateIdx
+     */
+    public FeatureVector features(int iCityIdx, int iDateIdx) {
+        FeatureVector fvCity = cityFeatures(iCityIdx);
+        FeatureVector fvDate = arrDateFeatures[iDateIdx];
+        int iNrCity = fvCity.numLocations();
+        int iNrDate = fvDate.numLocations();
+
+        int[] arrIndices = new int[iNrCity + iNrDate];
+        double[] arrValues = new double[iNrCity + iNrDate];
+        for (int i = 0; i < iNrCity; i++) {
+            arrIndices[i] = fvCity.indexAtLocation(i);
+            arrValues[i] = fvCity.valueAtLocation(i);
+        }
+        for (int i = 0; i < iNrDate; i++) {
+            arrIndices[iNrCity + i] = fvDate.indexAtLocation(i);
+            arrValues[iNrCity + i] = fvDate.valueAtLocation(i);
+        }
+        return new FeatureVector(fvCity.getAlphabet(), arrIndices, arrValues);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package trendminer.sptempclustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A uniform grid over the geo kernel centers, with cells as wide as the
+ * kernel cutoff radius, so that the centers within the radius of a point are
+ * found in the 3^d cells around it instead of by looking at every center.
+ *
+ * The points are either (longitude, latitude) in degrees, for the plain
+ * Euclidean distance, or positions on the sphere in km, in which case the
+ * chord distance is used; the chord grows with the great circle distance, so
+ * it selects exactly the centers within a great circle radius.
+ *
+ * @author andreavarga
+ */
+public class GeoIndex {
+
+    public static final double EARTH_RADIUS_KM = 6371.0;
+
+    double[][] arrPoints;
+    double dRadius;
+    double dCellSize;
+    HashMap<Long, List<Integer>> hmapCells = new HashMap<Long, List<Integer>>();
+
+    /**
+     * @param arrPoints one point per center, all of the same dimension (2 or 3)
+     * @param dRadius the cutoff radius, in the units of the points
+     */
+    public GeoIndex(double[][] arrPoints, double dRadius) {
+        this.arrPoints = arrPoints;
+        this.dRadius = dRadius;
+        dCellSize = dRadius > 0 ? dRadius : 1.0;
+
+        for (int h = 0; h < arrPoints.length; h++) {
+            Long lCell = cellKey(cellOf(arrPoints[h]));
+            List<Integer> lstCell = hmapCells.get(lCell);
+            if (lstCell == null) {
+                lstCell = new ArrayList<Integer>();
+                hmapCells.put(lCell, lstCell);
+            }
+            lstCell.add(h);
+        }
+    }
+
+    /**
+     * The point of a city for the Euclidean distance in degrees.
+     */
+    public static double[] planePoint(double dLatitude, double dLongitude) {
+        return new double[]{dLongitude, dLatitude};
+    }
+
+    /**
+     * The point of a city on the sphere (in km), for the great circle distance.
+     */
+    public static double[] spherePoint(double dLatitude, double dLongitude) {
+        double dPhi = Math.toRadians(dLatitude);
+        double dLambda = Math.toRadians(dLongitude);
+        return new double[]{
+                    EARTH_RADIUS_KM * Math.cos(dPhi) * Math.cos(dLambda),
+                    EARTH_RADIUS_KM * Math.cos(dPhi) * Math.sin(dLambda),
+                    EARTH_RADIUS_KM * Math.sin(dPhi)};
+    }
+
+    /**
+     * @return the chord length of a great circle distance (both in km)
+     */
+    public static double chordOfArc(double dArcKm) {
+        double dHalfAngle = dArcKm / (2 * EARTH_RADIUS_KM);
+        if (dHalfAngle >= Math.PI / 2) {
+            return 2 * EARTH_RADIUS_KM;
+        }
+        return 2 * EARTH_RADIUS_KM * Math.sin(dHalfAngle);
+    }
+
+    /**
+     * Great circle (haversine) distance in km.
+     */
+    public static double haversine(double dLat1, double dLong1, double dLat2, double dLong2) {
+        double dSinPhi = Math.sin(Math.toRadians(dLat2 - dLat1) / 2);
+        double dSinLambda = Math.sin(Math.toRadians(dLong2 - dLong1) / 2);
+        double dA = dSinPhi * dSinPhi
+                + Math.cos(Math.toRadians(dLat1)) * Math.cos(Math.toRadians(dLat2)) * dSinLambda * dSinLambda;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(dA)));
+    }
+
+    /**
+     * @return the centers within the radius of the point, in increasing order
+     */
+    public int[] neighbours(double[] arrPoint) {
+        int[] arrCell = cellOf(arrPoint);
+        int[] arrOffset = new int[arrCell.length];
+        Arrays.fill(arrOffset, -1);
+        double dRadiusSquare = dRadius * dRadius;
+
+        List<Integer> lstNeighbours = new ArrayList<Integer>();
+        while (true) {
+            int[] arrNeighbourCell = new int[arrCell.length];
+            for (int d = 0; d < arrCell.length; d++) {
+                arrNeighbourCell[d] = arrCell[d] + arrOffset[d];
+            }
+            List<Integer> lstCell = hmapCells.get(cellKey(arrNeighbourCell));
+            if (lstCell != null) {
+                for (int h : lstCell) {
+                    if (squareDistance(arrPoint, arrPoints[h]) <= dRadiusSquare) {
+                        lstNeighbours.add(h);
+                    }
+                }
+            }
+
+            //next of the 3^d offsets
+            int d = 0;
+            while (d < arrOffset.length && arrOffset[d] == 1) {
+                arrOffset[d] = -1;
+                d++;
+            }
+            if (d == arrOffset.length) {
+                break;
+            }
+            arrOffset[d]++;
+        }
+
+        int[] arrNeighbours = new int[lstNeighbours.size()];
+        for (int i = 0; i < arrNeighbours.length; i++) {
+            arrNeighbours[i] = lstNeighbours.get(i);
+        }
+        Arrays.sort(arrNeighbours);
+
+        //a cell is seen twice when two of the neighbouring cells share a key
+        int iNrDistinct = 0;
+        for (int i = 0; i < arrNeighbours.length; i++) {
+            if (i == 0 || arrNeighbours[i] != arrNeighbours[i - 1]) {
+                arrNeighbours[iNrDistinct++] = arrNeighbours[i];
+            }
+        }
+        return Arrays.copyOf(arrNeighbours, iNrDistinct);
+    }
+
+    private int[] cellOf(double[] arrPoint) {
+        int[] arrCell = new int[arrPoint.length];
+        for (int d = 0; d < arrPoint.length; d++) {
+            arrCell[d] = (int) Math.floor(arrPoint[d] / dCellSize);
+        }
+        return arrCell;
+    }
+
+    //different cells may share a key, which only adds candidates that the distance check removes
+    private static Long cellKey(int[] arrCell) {
+        long lKey = 17;
+        for (int d = 0; d < arrCell.length; d++) {
+            lKey = lKey * 1000003L + arrCell[d];
+        }
+        return lKey;
+    }
+
+    private static double squareDistance(double[] arrA, double[] arrB) {
+        double dSum = 0;
+        for (int d = 0; d < arrA.length; d++) {
+            dSum += (arrA[d] - arrB[d]) * (arrA[d] - arrB[d]);
+        }
+        return dSum;
+    }
+}
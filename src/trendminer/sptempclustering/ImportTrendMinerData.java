@@ -16,18 +16,26 @@ import cc.mallet.util.CommandOption;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import org.joda.time.DateTime;
 import org.joda.time.Days;
@@ -51,7 +59,15 @@ public class ImportTrendMinerData {
     public static HashMap<Integer, String> hmapCityLatitude = new HashMap<Integer, String>();
     public static HashMap<Integer, String> hmapCityCountry = new HashMap<Integer, String>();
     public static HashMap<Integer, String> hmapCityNames = new HashMap<Integer, String>();
+    //the parsed coordinates of the geo kernel centers, and their index (sparse features only)
+    public static double[] arrCityLatitude;
+    public static double[] arrCityLongitude;
+    public static double[][] arrCityPoints;
+    public static GeoIndex geoIndex;
     
+    //size of the chunks the sora_vs file is split into when parsing with several threads
+    static final long CHUNK_SIZE = 64L << 20;
+
     //for creating mallet instances
     static Pattern tokenPattern = Pattern.compile("[\\p{L}\\p{N}\\p{Punct}\\S]+");    
 
@@ -136,6 +152,76 @@ public class ImportTrendMinerData {
             false,
             "add spatial features",
             null);
+
+    static CommandOption.Boolean haversine =
+            new CommandOption.Boolean(ImportTrendMinerData.class,
+            "haversine", "",
+            false,
+            false,
+            "use the great circle distance in km for the spatial features (sigma_GEO is then in km) "
+            + "instead of the Euclidean distance in degrees",
+            null);
+
+    static CommandOption.Boolean sparseFeatures =
+            new CommandOption.Boolean(ImportTrendMinerData.class,
+            "sparseFeatures", "",
+            false,
+            false,
+            "leave out the zero indicator features and the RBF features below featureEpsilon",
+            null);
+
+    static CommandOption.Double featureEpsilon =
+            new CommandOption.Double(ImportTrendMinerData.class,
+            "featureEpsilon", "DECIMAL",
+            true,
+            1e-6,
+            "the smallest RBF feature value kept with sparseFeatures",
+            null);
+
+    static CommandOption.Boolean fastParser =
+            new CommandOption.Boolean(ImportTrendMinerData.class,
+            "fastParser", "",
+            false,
+            true,
+            "parse sora_vs directly from bytes; false uses the original regex parsing "
+            + "(and echoes every line)",
+            null);
+
+    static CommandOption.Integer nrThreads =
+            new CommandOption.Integer(ImportTrendMinerData.class,
+            "nrThreads", "INTEGER",
+            true,
+            1,
+            "number of threads parsing the memory mapped sora_vs file in chunks "
+            + "(needs the fast parser)",
+            null);
+
+    static CommandOption.Boolean directTokens =
+            new CommandOption.Boolean(ImportTrendMinerData.class,
+            "directTokens", "",
+            false,
+            true,
+            "build the token sequences straight from the dictionary ids; "
+            + "false joins the words into a string and tokenizes it with the pipe",
+            null);
+
+    static CommandOption.Boolean featureCache =
+            new CommandOption.Boolean(ImportTrendMinerData.class,
+            "featureCache", "",
+            false,
+            true,
+            "compute the features once per city and per date and combine them for each document "
+            + "(used together with directTokens)",
+            null);
+
+    static CommandOption.Boolean streaming =
+            new CommandOption.Boolean(ImportTrendMinerData.class,
+            "streaming", "",
+            false,
+            false,
+            "pipe and write each document as soon as it is read (into a .corpus file), "
+            + "instead of keeping all instances in memory",
+            null);
     public static Date datetimeStart;
     public static Calendar calStart;
     public static Date datetimeEnd;
@@ -159,26 +245,57 @@ public class ImportTrendMinerData {
     public static List<Double> computeGeoRBF(int iCity) {
         List<Double> lstRBFValues = new ArrayList<Double>();
 
-        Double dVal = -1.0;
-
-        Double dLongCity2 = Double.parseDouble(hmapCityLongitude.get(iCity));
-        Double dLatCity2 = Double.parseDouble(hmapCityLatitude.get(iCity));
-
-        Double dDist = 0.0;
-        Double dSigma_square = sigma_GEO.value * sigma_GEO.value;
-
         for (int i = 0; i < hmapCityCountry.keySet().size(); i++) {
-            Double dLongCity1 = Double.parseDouble(hmapCityLongitude.get(i));
-            Double dLatCity1 = Double.parseDouble(hmapCityLatitude.get(i));
+            lstRBFValues.add(computeGeoRBF(iCity, i));
+        }
+
+        return lstRBFValues;
+    }
 
-            dDist = Math.pow(dLongCity2 - dLongCity1, 2.0)
-                    + Math.pow(dLatCity2 - dLatCity1, 2.0);
+    /**
+     * The value of the geo kernel centered at city iCenter for city iCity.
+     */
+    public static double computeGeoRBF(int iCity, int iCenter) {
+        double dDist;
+        if (haversine.value) {
+            dDist = GeoIndex.haversine(arrCityLatitude[iCity], arrCityLongitude[iCity],
+                    arrCityLatitude[iCenter], arrCityLongitude[iCenter]);
+            dDist = dDist * dDist;
+        } else {
+            dDist = Math.pow(arrCityLongitude[iCity] - arrCityLongitude[iCenter], 2.0)
+                    + Math.pow(arrCityLatitude[iCity] - arrCityLatitude[iCenter], 2.0);
+        }
+        double dSigma_square = sigma_GEO.value * sigma_GEO.value;
+        return Math.exp((-1.0 * dDist) / (2.0 * dSigma_square));
+    }
 
-            dVal = Math.exp((-1.0 * dDist) / (2.0 * dSigma_square));
-            lstRBFValues.add(dVal);
+    /**
+     * Parses the coordinates of the cities once, and with sparseFeatures
+     * indexes them, so that each city only visits the kernels above
+     * featureEpsilon: exp(-d^2 / 2 sigma^2) >= epsilon for d <= sigma * sqrt(-2 ln epsilon).
+     */
+    public static void initGeoKernels() {
+        int iNrCenters = hmapCityCountry.keySet().size();
+        arrCityLatitude = new double[iNrCenters];
+        arrCityLongitude = new double[iNrCenters];
+        arrCityPoints = new double[iNrCenters][];
+        for (int h = 0; h < iNrCenters; h++) {
+            arrCityLatitude[h] = Double.parseDouble(hmapCityLatitude.get(h));
+            arrCityLongitude[h] = Double.parseDouble(hmapCityLongitude.get(h));
+            arrCityPoints[h] = haversine.value
+                    ? GeoIndex.spherePoint(arrCityLatitude[h], arrCityLongitude[h])
+                    : GeoIndex.planePoint(arrCityLatitude[h], arrCityLongitude[h]);
         }
 
-        return lstRBFValues;
+        geoIndex = null;
+        if (sparseFeatures.value && featureEpsilon.value > 0 && featureEpsilon.value < 1) {
+            double dCutoff = sigma_GEO.value * Math.sqrt(-2.0 * Math.log(featureEpsilon.value));
+            if (haversine.value) {
+                dCutoff = GeoIndex.chordOfArc(dCutoff);
+            }
+            //a little slack, the kernel values themselves are compared with epsilon
+            geoIndex = new GeoIndex(arrCityPoints, dCutoff * (1 + 1e-9));
+        }
     }
 
     public static String compute_Month_Indicators(int iMonthValue, int iDateValue) {
@@ -192,7 +309,7 @@ public class ImportTrendMinerData {
             sVal = sVal.replaceAll("dist_to_", "month_");
             if (lstRBF_Centers_FeatureName.get(h).toString().compareTo(sFeatureValue) == 0) {
                 sRBF += sVal + "1.0 ";
-            } else {
+            } else if (!sparseFeatures.value) {
                 sRBF += sVal + "0.0 ";
             }
         }
@@ -208,6 +325,9 @@ public class ImportTrendMinerData {
         String sRBF = "";
 
         for (int h = 0; h < lstRBF_Centers.size(); h++) {
+            if (sparseFeatures.value && lst_RBFDiff.get(h) < featureEpsilon.value) {
+                continue;
+            }
             sRBF += lstRBF_Centers_FeatureName.get(h).toString() + "="
                     + lst_RBFDiff.get(h).toString() + " ";
         }
@@ -217,11 +337,26 @@ public class ImportTrendMinerData {
     }
 
     public static String computeGeoRBFkernels(int iCity) {
+        if (geoIndex != null) {
+            String sRBF = "";
+            for (int h : geoIndex.neighbours(arrCityPoints[iCity])) {
+                double dVal = computeGeoRBF(iCity, h);
+                if (dVal < featureEpsilon.value) {
+                    continue;
+                }
+                sRBF += "georbf" + hmapCityNames.get(h) + "=" + Double.toString(dVal) + " ";
+            }
+            return sRBF;
+        }
+
         List<Double> lst_RBFDiff = null;
         lst_RBFDiff = computeGeoRBF(iCity);
 
         String sRBF = "";
         for (int h = 0; h < hmapCityCountry.keySet().size(); h++) {
+            if (sparseFeatures.value && lst_RBFDiff.get(h) < featureEpsilon.value) {
+                continue;
+            }
             sRBF += "georbf" + hmapCityNames.get(h) + "="
                     + lst_RBFDiff.get(h).toString() + " ";
         }
@@ -234,7 +369,7 @@ public class ImportTrendMinerData {
         for (int h = 0; h < alphCity.size(); h++) {
             if (h == iUserIdx) {
                 sUserFeatures += alphCity.lookupObject(h) + "=1" + " ";
-            } else {
+            } else if (!sparseFeatures.value) {
                 sUserFeatures += alphCity.lookupObject(h) + "=0" + " ";
             }
         }
@@ -247,21 +382,139 @@ public class ImportTrendMinerData {
         for (int h = 0; h < alphCountry.size(); h++) {
             if (alphCountry.lookupObject(h).toString().contains(sCountry)) {
                 sCountryFeatures += alphCountry.lookupObject(h) + "=1" + " ";
-            } else {
+            } else if (!sparseFeatures.value) {
                 sCountryFeatures += alphCountry.lookupObject(h) + "=0" + " ";
             }
         }
         return sCountryFeatures;
     }
 
+    /**
+     * Adds the names of all the features to the target alphabet, in the order
+     * in which they appear in the (dense) feature strings. The indices then
+     * do not depend on which features the first documents happen to have.
+     */
+    public static void addFeatureNames(Alphabet alphTarget) {
+        if (useCityFeatures.value) {
+            for (int h = 0; h < alphCity.size(); h++) {
+                alphTarget.lookupIndex(alphCity.lookupObject(h).toString(), true);
+            }
+        }
+        if (useCountryFeatures.value) {
+            for (int h = 0; h < alphCountry.size(); h++) {
+                alphTarget.lookupIndex(alphCountry.lookupObject(h).toString(), true);
+            }
+        }
+        if (useMonthlyIndicatorFeatures.value) {
+            for (int h = 0; h < lstRBF_Centers.size(); h++) {
+                alphTarget.lookupIndex(lstRBF_Centers_FeatureName.get(h).replaceAll("dist_to_", "month_"), true);
+            }
+        } else {
+            if (geokernel.value) {
+                for (int h = 0; h < hmapCityCountry.keySet().size(); h++) {
+                    alphTarget.lookupIndex("georbf" + hmapCityNames.get(h), true);
+                }
+            }
+            for (int h = 0; h < lstRBF_Centers.size(); h++) {
+                alphTarget.lookupIndex(lstRBF_Centers_FeatureName.get(h), true);
+            }
+        }
+    }
+
+    /**
+     * The target feature string of a document of city iCityIdx on date iDateIdx.
+     */
+    public static String documentFeatures(int iCityIdx, int iDateIdx, int iMonthValue, int iDateValue) {
+        return cityFeatures(iCityIdx) + dateFeatures(iDateIdx, iMonthValue, iDateValue);
+    }
+
+    /**
+     * The part of the document features that depends only on the city.
+     */
+    public static String cityFeatures(int iCityIdx) {
+        String sFeaturesLine = "";
+        if (useCityFeatures.value) {
+            sFeaturesLine += addCityFeatures(iCityIdx);
+        }
+
+        if (useCountryFeatures.value) {
+            String sCountry = hmapCityCountry.get(iCityIdx);
+            if (sCountry.length() > 0) {
+                sFeaturesLine += addCountryFeatures(sCountry);
+            }
+        }
+
+        if (!useMonthlyIndicatorFeatures.value && geokernel.value) {
+            sFeaturesLine += computeGeoRBFkernels(iCityIdx);
+        }
+        return sFeaturesLine;
+    }
+
+    /**
+     * The part of the document features that depends only on the date.
+     */
+    public static String dateFeatures(int iDateIdx, int iMonthValue, int iDateValue) {
+        if (useMonthlyIndicatorFeatures.value) {
+            return compute_Month_Indicators(iMonthValue, iDateValue);
+        }
+        return computeRBFkernels(iDateIdx);
+    }
+
+    /**
+     * Either buffers the document for adding to the InstanceList at the end,
+     * or (in streaming mode) pipes it right away and appends it to the corpus
+     * file. With a directBuilder the document holds dictionary ids and is
+     * turned into a piped instance directly, otherwise its words go through
+     * the whole pipe.
+     */
+    static void addDocument(SoraVsDocuments.Document document, String sName, Pipe instancePipe,
+            DirectInstanceBuilder directBuilder, List<Instance> instanceBuffer,
+            CorpusWriter corpusWriter) throws IOException {
+        Instance instance;
+        if (directBuilder != null) {
+            instance = directBuilder.instanceFrom(document.arrDicIds,
+                    document.fvFeatures != null ? document.fvFeatures : document.sFeatures, sName);
+        } else {
+            instance = new Instance(document.sWords, document.sFeatures, sName, null);
+            if (corpusWriter != null) {
+                instance = instancePipe.instanceFrom(instance);
+            }
+        }
+        if (corpusWriter != null) {
+            corpusWriter.write(instance, document.iMonth, document.iCityIdx);
+        } else {
+            instanceBuffer.add(instance);
+        }
+    }
+
+    /**
+     * Adds the documents of a parsed chunk, in order, numbering them after iLineNr.
+     *
+     * @return the number of the last document added
+     */
+    static int addChunk(List<SoraVsDocuments.Document> lstDocuments, int iLineNr, Pipe instancePipe,
+            DirectInstanceBuilder directBuilder, List<Instance> instanceBuffer,
+            CorpusWriter corpusWriter) throws IOException {
+        for (SoraVsDocuments.Document document : lstDocuments) {
+            iLineNr++;
+            addDocument(document, String.valueOf(iLineNr), instancePipe, directBuilder,
+                    instanceBuffer, corpusWriter);
+        }
+        return iLineNr;
+    }
+
     public static void main(String[] args) {
         try {
             CommandOption.setSummary(ImportTrendMinerData.class,
                     "Inporting Trendminer data into Mallet - developed between Dec 2013 - April 2014");
             CommandOption.process(ImportTrendMinerData.class, args);
             CommandOption.printOptionValues(ImportTrendMinerData.class);
+            if (nrThreads.value > 1 && !fastParser.value) {
+                throw new IllegalArgumentException("--nrThreads " + nrThreads.value
+                        + " needs --fastParser true; the regex parser runs on one thread");
+            }
 
-            Pipe instancePipe =
+            SerialPipes instancePipe =
                     new SerialPipes(new Pipe[]{
                         (Pipe) new TargetStringToFeatures(),
                         (Pipe) new CharSequence2TokenSequence(tokenPattern),
@@ -328,6 +581,16 @@ public class ImportTrendMinerData {
             fDictionary.close();
             System.out.println("Loaded");
 
+            DirectInstanceBuilder directBuilder = null;
+            if (directTokens.value) {
+                if (DirectInstanceBuilder.isOneTokenPerWord(alphDictionary, tokenPattern)) {
+                    directBuilder = new DirectInstanceBuilder(alphDictionary, instancePipe);
+                } else {
+                    System.out.println("Some dictionary words are split by the tokenizer, "
+                            + "building the token sequences through the pipe");
+                }
+            }
+
             if (useCountryFeatures.value) {
                 /// --- City country mapping ---
                 String sUser_Country = sMainDir + "GEO";
@@ -348,6 +611,10 @@ public class ImportTrendMinerData {
                 }
                 System.out.println("alphCountry.size():" + alphCountry.size());
                 fUsers_Country.close();
+
+                if (geokernel.value) {
+                    initGeoKernels();
+                }
             }
 
 
@@ -373,12 +640,23 @@ public class ImportTrendMinerData {
             Alphabet alphDates = new Alphabet();
 
             HashMap<Integer, String> hmapDateIdx_DateName = new HashMap<Integer, String>();
+            int iMaxDateIdx = -1;
             while ((sLine = frW_Dates.readLine()) != null) {
                 arrWords = sLine.split(" ");
                 alphDates.lookupIndex(arrWords[1], true);
                 hmapDateIdx_DateName.put(Integer.parseInt(arrWords[0]), arrWords[1]);
+                iMaxDateIdx = Math.max(iMaxDateIdx, Integer.parseInt(arrWords[0]));
             }
             frW_Dates.close();
+
+            //year and month of each date id, so that the records need no date parsing
+            int[] arrDateYear = new int[iMaxDateIdx + 1];
+            int[] arrDateMonth = new int[iMaxDateIdx + 1];
+            for (Integer iDate : hmapDateIdx_DateName.keySet()) {
+                String[] arrDate = hmapDateIdx_DateName.get(iDate).split("-");
+                arrDateYear[iDate] = Integer.parseInt(arrDate[0]);
+                arrDateMonth[iDate] = Integer.parseInt(arrDate[1]);
+            }
             System.out.println("Loaded");
 
             String sDMR_FileSuffix = "";
@@ -402,141 +680,92 @@ public class ImportTrendMinerData {
                 sSuffix += ".Country";
             }
 
-            BufferedReader fsora_vs = new BufferedReader(new FileReader(new File(sMainDir + "sora_vs")));
             System.out.println("Reading sora");
 
-            String sUserId = "";
-            String sCurrentUserId = "";
-            int iDicIdx = -1;
-            int iRepetitionIdx = -1;
-            int iDateIdx = -1;
-            int iDateValue = -1;
-
-            int iMonthValue = -1;
-            int iCityIdx = -1;
-
             int iLineNr = -1;
             
+            dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+            String sOutputFile = sMainDir
+                    + "dmr." + new File(sMainDir).getName() + "-"
+                    + sDMR_FileSuffix + sSuffix + "-"
+                    + dateFormat.format(new Date());
+
             InstanceList instancesDMR = new InstanceList(instancePipe);
             ArrayList<Instance> instanceBuffer = new ArrayList<Instance>();
-            String sWordsLine ="";
-            String sFeaturesLine ="";
-
-            //sora_vs is in the format: 
-            //date_id[SPACE]user_id[SPACE]token_id[TAB]frequency (The tokens for each user and day)
-            while ((sLine = fsora_vs.readLine()) != null) {
-                sLine = sLine.replaceAll(" \t", "\t");
-                arrWords = sLine.split(" ");
-                sUserId = arrWords[1];
-
-                iCityIdx = Integer.parseInt(sUserId);
-
-                iDicIdx = Integer.parseInt(arrWords[2].split("\t")[0]);
-                System.out.println(sLine);
-                if (arrWords[2].split("\t").length == 1) {
-                    iRepetitionIdx = Integer.parseInt(arrWords[3].trim());
-                } else {
-                    iRepetitionIdx = Integer.parseInt(arrWords[2].split("\t")[1].trim());
-                }
-                iDateIdx = Integer.parseInt(arrWords[0]);
-
-                String sDateTime = hmapDateIdx_DateName.get(iDateIdx);
-
-                iDateValue =
-                        Integer.parseInt(sDateTime.split("-")[0]);
-                iMonthValue = Integer.parseInt(sDateTime.split("-")[1]);
-
-                if ((iDateValue >= startYear.value) && (iDateValue <= endYear.value)) {} 
-                else continue;
-                
+            CorpusWriter corpusWriter = null;
+            if (streaming.value) {
+                corpusWriter = new CorpusWriter(new File(sOutputFile + ".corpus"));
+            }
+            addFeatureNames(instancePipe.getTargetAlphabet());
 
-                sCountry = alphCity.lookupObject(iCityIdx).toString();
-                if (sCountry.contains(".")) {
-                    sCountry = sCountry.substring(sCountry.lastIndexOf("."));
-                }
-                if (sCurrentUserId.length() == 0) {
-                    sCurrentUserId = sUserId;
-                    if (useCityFeatures.value) {
-                        sFeaturesLine += addCityFeatures(iCityIdx);
-                    }
+            FeatureCache cacheFeatures = null;
+            if (directBuilder != null && featureCache.value) {
+                cacheFeatures = new FeatureCache(instancePipe.getPipe(0), alphCity.size(),
+                        arrDateYear, arrDateMonth);
+            }
 
-                    if (useCountryFeatures.value) {
-                        sCountry = hmapCityCountry.get(iCityIdx);
-                        if (sCountry.length() > 0) {
-                            sFeaturesLine += addCountryFeatures(sCountry);
+            File fSora = new File(sMainDir + "sora_vs");
+            if (nrThreads.value > 1 && fastParser.value) {
+                RandomAccessFile rafSora = new RandomAccessFile(fSora, "r");
+                FileChannel fChannel = rafSora.getChannel();
+                long[] arrChunks = SoraVsDocuments.planChunks(fChannel,
+                        (int) Math.max(4L * nrThreads.value, fChannel.size() / CHUNK_SIZE + 1),
+                        arrDateYear);
+                System.out.println("Parsing " + (arrChunks.length - 1) + " chunks with "
+                        + nrThreads.value + " threads");
+
+                ExecutorService executor = Executors.newFixedThreadPool(nrThreads.value);
+                try {
+                    ArrayDeque<Future<List<SoraVsDocuments.Document>>> queueChunks =
+                            new ArrayDeque<Future<List<SoraVsDocuments.Document>>>();
+                    for (int i = 0; i + 1 < arrChunks.length; i++) {
+                        queueChunks.add(executor.submit(new SoraVsDocuments.Chunk(fChannel,
+                                arrChunks[i], arrChunks[i + 1], alphDictionary, arrDateYear, arrDateMonth,
+                                directBuilder != null, cacheFeatures)));
+                        //bound the parsed but not yet merged chunks held in memory
+                        if (queueChunks.size() > 2 * nrThreads.value) {
+                            iLineNr = addChunk(queueChunks.poll().get(), iLineNr,
+                                    instancePipe, directBuilder, instanceBuffer, corpusWriter);
                         }
                     }
-
-                    if (useMonthlyIndicatorFeatures.value) {
-                        sFeaturesLine += compute_Month_Indicators(iMonthValue, iDateValue);
-                    } else {
-                        if (geokernel.value) {
-                            sFeaturesLine += computeGeoRBFkernels(iCityIdx);
-                        }
-                        sFeaturesLine += computeRBFkernels(iDateIdx);
+                    while (!queueChunks.isEmpty()) {
+                        iLineNr = addChunk(queueChunks.poll().get(), iLineNr,
+                                instancePipe, directBuilder, instanceBuffer, corpusWriter);
                     }
+                } finally {
+                    executor.shutdownNow();
+                    rafSora.close();
                 }
+            } else {
+                SoraVsParser fsora_vs = new SoraVsParser(new FileInputStream(fSora), !fastParser.value);
+                SoraVsDocuments documents = new SoraVsDocuments(fsora_vs, alphDictionary,
+                        arrDateYear, arrDateMonth, !fastParser.value, directBuilder != null, cacheFeatures);
+                while (documents.next()) {
+                    iLineNr++;
+                    addDocument(documents.getDocument(), String.valueOf(iLineNr), instancePipe,
+                            directBuilder, instanceBuffer, corpusWriter);
+                }
+                fsora_vs.close();
+            }
 
-                //same user
-                if (sUserId.compareTo(sCurrentUserId) == 0) {
-                    for (int k = 0; k < iRepetitionIdx; k++) {
-                        sWordsLine += alphDictionary.lookupObject(iDicIdx).toString() + " ";
-                    }
-                } else {
-                    try {
-                        iLineNr++;
-                        instanceBuffer.add(new Instance(sWordsLine, sFeaturesLine, String.valueOf(iLineNr), null));
-                        sWordsLine = "";
-                        sFeaturesLine = "";
-                        if (useCityFeatures.value) {
-                            sFeaturesLine += addCityFeatures(iCityIdx);
-                        }
-
-                        if (useCountryFeatures.value) {
-                            sCountry = hmapCityCountry.get(iCityIdx);
-                            if (sCountry.length() > 0) {
-                                sFeaturesLine += addCountryFeatures(sCountry);
-                            }
-                        }
-                        if (useMonthlyIndicatorFeatures.value) {
-                            sFeaturesLine += compute_Month_Indicators(iMonthValue, iDateValue);
-                        } else {
-                            if (geokernel.value) {
-                                sFeaturesLine += computeGeoRBFkernels(iCityIdx);
-                            }
-                            sFeaturesLine += computeRBFkernels(iDateIdx);
-                        }
-
+            if (corpusWriter != null) {
+                System.out.println("instances.size():" + corpusWriter.size());
+                corpusWriter.close(instancePipe.getDataAlphabet(), instancePipe.getTargetAlphabet());
+                System.out.println("Finished");
+                return;
+            }
 
-                        for (int k = 0; k < iRepetitionIdx; k++) {
-                            sWordsLine += alphDictionary.lookupObject(iDicIdx).toString() + " ";
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    sCurrentUserId = sUserId;
+            if (directBuilder != null) {
+                for (Instance instance : instanceBuffer) {
+                    instancesDMR.add(instance);
                 }
+            } else {
+                instancesDMR.addThruPipe(instanceBuffer.iterator());
             }
 
-            fsora_vs.close();
-            
-            iLineNr++;
-            instanceBuffer.add(new Instance(sWordsLine, sFeaturesLine, String.valueOf(iLineNr), null));
-            
-            instancesDMR.addThruPipe(instanceBuffer.iterator());
-
             System.out.println("instances.size():"+ instancesDMR.size());
             
-            dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
-            datetimeStart = new Date();
-            calStart = Calendar.getInstance();
-            calStart.setTime(datetimeStart);
-            
-            File fDMR_MalletInstances = new File(sMainDir
-                    + "dmr." + new File(sMainDir).getName()+"-"+
-                    sDMR_FileSuffix + sSuffix+"-"+
-                    dateFormat.format(datetimeStart)
-                    + ".mallet");
+            File fDMR_MalletInstances = new File(sOutputFile + ".mallet");
             
             ObjectOutputStream oos =
                     new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(fDMR_MalletInstances)));
@@ -57,6 +57,43 @@ public class Main {
             1,
             "burnin for DMR", null);    
     
+    static CommandOption.Boolean sharedCounts =
+            new CommandOption.Boolean(Main.class,
+            "sharedCounts", "",
+            false,
+            false,
+            "with several threads, sample against one set of word/topic counts instead of a copy per thread",
+            null);
+    
+    static CommandOption.String sampler =
+            new CommandOption.String(Main.class,
+            "sampler", "sparse|alias",
+            false,
+            "sparse",
+            "sparse: SparseLDA, alias: Metropolis-Hastings with alias table proposals, whose cost grows less "
+            + "with the number of topics, but is slower than SparseLDA on the sample corpus at 500 and 2000 topics",
+            null);
+    
+    static CommandOption.Integer mhSteps = new CommandOption.Integer(Main.class, "mhSteps",
+            "INTEGER",
+            false,
+            2,
+            "the number of Metropolis-Hastings steps per word with --sampler alias", null);
+    
+    static CommandOption.String sweep =
+            new CommandOption.String(Main.class,
+            "sweep", "document|word",
+            false,
+            "document",
+            "the order in which the words are sampled, word: grouped by word, with --sampler alias",
+            null);
+    
+    static CommandOption.Integer alphaCacheMB = new CommandOption.Integer(Main.class, "alphaCacheMB",
+            "INTEGER",
+            false,
+            512,
+            "the memory for caching the DMR prior of each distinct feature vector between regressions, 8 bytes per topic and feature vector; the prior of the documents whose feature vector does not fit is recomputed in every iteration", null);
+    
     static CommandOption.String trainInstanceList =
             new CommandOption.String(Main.class,
             "trainInstanceList", "tokenacc|multiseg",
@@ -73,6 +110,22 @@ public class Main {
             "test file to evaluate DMR",
             null);
 
+    static CommandOption.String trainIndex =
+            new CommandOption.String(Main.class,
+            "trainIndex", "",
+            false,
+            "",
+            "index file (see CreateTrainTestInstances --splitMode) listing the training documents of the trainInstanceList .corpus file",
+            null);
+
+    static CommandOption.String testIndex =
+            new CommandOption.String(Main.class,
+            "testIndex", "",
+            false,
+            "",
+            "index file listing the test documents of the testInstanceList .corpus file",
+            null);
+
     static CommandOption.String outputFolder =
             new CommandOption.String(Main.class,
             "outputFolder", "",
@@ -104,7 +157,7 @@ public class Main {
             }
 
             //loading the trainign file
-            InstanceList training = InstanceList.load(new File(trainInstanceList.value));
+            InstanceList training = CorpusReader.loadInstances(new File(trainInstanceList.value), trainIndex.value);
             
             System.out.println("Loaded training instances");
             
@@ -115,6 +168,21 @@ public class Main {
             lda.addInstances(training);
             lda.setOptimizeInterval(50);
             lda.setNumThreads(nrThreads.value);
+            lda.setSharedCounts(sharedCounts.value);
+            lda.setAlphaCacheSize(alphaCacheMB.value * (1L << 20) / 8);
+            if (sampler.value.equals("alias")) {
+                lda.setAliasSampler(mhSteps.value);
+            } else if (!sampler.value.equals("sparse")) {
+                throw new IllegalArgumentException("Unknown sampler " + sampler.value);
+            }
+            if (sweep.value.equals("word")) {
+                if (!sampler.value.equals("alias")) {
+                    throw new IllegalArgumentException("--sweep word needs --sampler alias");
+                }
+                lda.setWordMajorSweep(true);
+            } else if (!sweep.value.equals("document")) {
+                throw new IllegalArgumentException("Unknown sweep " + sweep.value);
+            }
             lda.setNumIterations(nrIterations.value);
             System.out.println("Before estimating");
             lda.estimate();
@@ -129,7 +197,7 @@ public class Main {
             if (testInstanceList.value.length() > 0) {
                 edu.umass.cs.mallet.users.kan.topics.MarginalProbEstimator evaluator = lda.getProbEstimator();
 
-                InstanceList instances = InstanceList.load(new File(testInstanceList.value));
+                InstanceList instances = CorpusReader.loadInstances(new File(testInstanceList.value), testIndex.value);
                 System.out.println("Loaded test instances");
                 
                 PrintStream docProbabilityStream = new PrintStream(outputFolder.value + "docProbabilityFile.txt");
@@ -0,0 +1,245 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package trendminer.sptempclustering;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Groups the sora_vs records into documents: consecutive records of the same
+ * city (within the startYear .. endYear range) form one document, whose
+ * features are computed from its first record. Records outside the range are
+ * skipped and do not end a document.
+ *
+ * The words of a document are kept either as the space separated string the
+ * Mallet pipe tokenizes, or (bDirectTokens) as the dictionary ids themselves,
+ * each repeated by its frequency. The features are either the feature string
+ * or, with a FeatureCache, the finished FeatureVector.
+ *
+ * @author andreavarga
+ */
+public class SoraVsDocuments {
+
+    SoraVsParser parser;
+    Alphabet alphDictionary;
+    int[] arrDateYear;
+    int[] arrDateMonth;
+    boolean bEcho;
+    boolean bDirectTokens;
+    FeatureCache featureCache;
+
+    int iCurrentCityIdx = -1;
+    StringBuilder sbWords = new StringBuilder();
+    int[] arrTokens = new int[1024];
+    int iNrTokens = 0;
+    String sFeaturesLine = "";
+    FeatureVector fvFeatures;
+    int iCurrentMonth;
+
+    Document document;
+
+    /**
+     * One grouped document: its words (or dictionary ids) and its features.
+     */
+    public static class Document {
+
+        public String sWords;
+        public int[] arrDicIds;
+        public String sFeatures;
+        public FeatureVector fvFeatures;
+        //the month (yyyymm) and the city of the first record
+        public int iMonth;
+        public int iCityIdx;
+    }
+
+    public SoraVsDocuments(SoraVsParser parser, Alphabet alphDictionary,
+            int[] arrDateYear, int[] arrDateMonth, boolean bEcho, boolean bDirectTokens,
+            FeatureCache featureCache) {
+        this.parser = parser;
+        this.alphDictionary = alphDictionary;
+        this.arrDateYear = arrDateYear;
+        this.arrDateMonth = arrDateMonth;
+        this.bEcho = bEcho;
+        this.bDirectTokens = bDirectTokens;
+        this.featureCache = featureCache;
+    }
+
+    static boolean isInRange(int[] arrDateYear, int iDateIdx) {
+        int iDateValue = arrDateYear[iDateIdx];
+        return (iDateValue >= ImportTrendMinerData.startYear.value)
+                && (iDateValue <= ImportTrendMinerData.endYear.value);
+    }
+
+    /**
+     * Reads up to the end of the next document.
+     *
+     * @return false if there are no more documents
+     */
+    public boolean next() throws IOException {
+        while (parser.next()) {
+            if (bEcho) {
+                System.out.println(parser.getLine());
+            }
+            if (!isInRange(arrDateYear, parser.iDateIdx)) {
+                continue;
+            }
+
+            boolean bFinished = false;
+            if (parser.iCityIdx != iCurrentCityIdx) {
+                if (iCurrentCityIdx != -1) {
+                    finishDocument();
+                    bFinished = true;
+                }
+                iCurrentCityIdx = parser.iCityIdx;
+                iCurrentMonth = arrDateYear[parser.iDateIdx] * 100 + arrDateMonth[parser.iDateIdx];
+                if (featureCache != null) {
+                    fvFeatures = featureCache.features(iCurrentCityIdx, parser.iDateIdx);
+                } else {
+                    sFeaturesLine = ImportTrendMinerData.documentFeatures(iCurrentCityIdx, parser.iDateIdx,
+                            arrDateMonth[parser.iDateIdx], arrDateYear[parser.iDateIdx]);
+                }
+            }
+
+            if (bDirectTokens) {
+                if (iNrTokens + parser.iRepetitionIdx > arrTokens.length) {
+                    arrTokens = Arrays.copyOf(arrTokens,
+                            Math.max(2 * arrTokens.length, iNrTokens + parser.iRepetitionIdx));
+                }
+                Arrays.fill(arrTokens, iNrTokens, iNrTokens + parser.iRepetitionIdx, parser.iDicIdx);
+                iNrTokens += parser.iRepetitionIdx;
+            } else {
+                String sWord = alphDictionary.lookupObject(parser.iDicIdx).toString();
+                for (int k = 0; k < parser.iRepetitionIdx; k++) {
+                    sbWords.append(sWord).append(' ');
+                }
+            }
+
+            if (bFinished) {
+                return true;
+            }
+        }
+
+        if (iCurrentCityIdx != -1) {
+            finishDocument();
+            iCurrentCityIdx = -1;
+            return true;
+        }
+        return false;
+    }
+
+    private void finishDocument() {
+        document = new Document();
+        if (bDirectTokens) {
+            document.arrDicIds = Arrays.copyOf(arrTokens, iNrTokens);
+            iNrTokens = 0;
+        } else {
+            document.sWords = sbWords.toString();
+            sbWords.setLength(0);
+        }
+        document.sFeatures = sFeaturesLine;
+        document.fvFeatures = fvFeatures;
+        document.iMonth = iCurrentMonth;
+        document.iCityIdx = iCurrentCityIdx;
+    }
+
+    /**
+     * @return the document read by the last next()
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * Splits the file into about iNrChunks byte ranges which all start at a
+     * document boundary, i.e. at an in range record whose city differs from
+     * the one of the previous in range record.
+     *
+     * @return the chunk offsets, starting with 0 and ending with the file size
+     */
+    public static long[] planChunks(FileChannel fChannel, int iNrChunks, int[] arrDateYear) throws IOException {
+        long lSize = fChannel.size();
+        List<Long> lstBoundaries = new ArrayList<Long>();
+        lstBoundaries.add(0L);
+
+        for (int k = 1; k < iNrChunks; k++) {
+            long lApprox = lSize * k / iNrChunks;
+            if (lApprox <= lstBoundaries.get(lstBoundaries.size() - 1)) {
+                continue;
+            }
+            SoraVsParser scanner = new SoraVsParser(fChannel, lApprox, lSize);
+            scanner.skipLine();
+
+            long lBoundary = -1;
+            int iLastCityIdx = -1;
+            while (scanner.next()) {
+                if (!isInRange(arrDateYear, scanner.iDateIdx)) {
+                    continue;
+                }
+                if (iLastCityIdx != -1 && scanner.iCityIdx != iLastCityIdx) {
+                    lBoundary = scanner.getRecordStart();
+                    break;
+                }
+                iLastCityIdx = scanner.iCityIdx;
+            }
+            if (lBoundary == -1) {
+                break;
+            }
+            if (lBoundary > lstBoundaries.get(lstBoundaries.size() - 1)) {
+                lstBoundaries.add(lBoundary);
+            }
+        }
+        lstBoundaries.add(lSize);
+
+        long[] arrBoundaries = new long[lstBoundaries.size()];
+        for (int i = 0; i < arrBoundaries.length; i++) {
+            arrBoundaries[i] = lstBoundaries.get(i);
+        }
+        return arrBoundaries;
+    }
+
+    /**
+     * Parses and featurizes one chunk of the memory mapped file.
+     */
+    public static class Chunk implements Callable<List<Document>> {
+
+        FileChannel fChannel;
+        long lStart;
+        long lEnd;
+        Alphabet alphDictionary;
+        int[] arrDateYear;
+        int[] arrDateMonth;
+        boolean bDirectTokens;
+        FeatureCache featureCache;
+
+        public Chunk(FileChannel fChannel, long lStart, long lEnd, Alphabet alphDictionary,
+                int[] arrDateYear, int[] arrDateMonth, boolean bDirectTokens, FeatureCache featureCache) {
+            this.fChannel = fChannel;
+            this.lStart = lStart;
+            this.lEnd = lEnd;
+            this.alphDictionary = alphDictionary;
+            this.arrDateYear = arrDateYear;
+            this.arrDateMonth = arrDateMonth;
+            this.bDirectTokens = bDirectTokens;
+            this.featureCache = featureCache;
+        }
+
+        public List<Document> call() throws IOException {
+            List<Document> lstDocuments = new ArrayList<Document>();
+            SoraVsDocuments documents = new SoraVsDocuments(
+                    new SoraVsParser(fChannel, lStart, lEnd),
+                    alphDictionary, arrDateYear, arrDateMonth, false, bDirectTokens, featureCache);
+            while (documents.next()) {
+                lstDocuments.add(documents.getDocument());
+            }
+            return lstDocuments;
+        }
+    }
+}
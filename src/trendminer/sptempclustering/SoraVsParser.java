@@ -0,0 +1,255 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package trendminer.sptempclustering;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the sora_vs records 'day_id city_id word_id[TAB]frequency' one at a
+ * time. The default mode parses the ints straight from a reusable byte buffer,
+ * without creating a String per line; the regex mode is the original
+ * split/replaceAll parsing, kept for comparison.
+ *
+ * After a successful next() the fields of the current record are in
+ * iDateIdx, iCityIdx, iDicIdx and iRepetitionIdx.
+ *
+ * The bytes come either from a stream or from a memory mapped region of the
+ * file, which is mapped in windows of at most 1GB so that regions of any size
+ * can be read.
+ *
+ * @author andreavarga
+ */
+public class SoraVsParser {
+
+    public int iDateIdx;
+    public int iCityIdx;
+    public int iDicIdx;
+    public int iRepetitionIdx;
+
+    static final long MAP_WINDOW = 1L << 30;
+
+    InputStream fIn;
+    FileChannel fChannel;
+    MappedByteBuffer mbbWindow;
+    long lMapped;
+    long lEnd;
+
+    byte[] arrBuffer;
+    int iPos = 0;
+    int iLimit = 0;
+    //file offset of arrBuffer[0]
+    long lBase = 0;
+    long lRecordStart;
+    int iLastByte;
+    long lLineNr = 0;
+
+    BufferedReader frRegex;
+    String sLine;
+
+    public SoraVsParser(InputStream in, boolean bRegex) {
+        if (bRegex) {
+            frRegex = new BufferedReader(new InputStreamReader(in));
+        } else {
+            fIn = in;
+            arrBuffer = new byte[1 << 16];
+        }
+    }
+
+    /**
+     * Reads the bytes [lStart, lEnd) of the channel.
+     */
+    public SoraVsParser(FileChannel fChannel, long lStart, long lEnd) {
+        this.fChannel = fChannel;
+        this.lMapped = lStart;
+        this.lEnd = lEnd;
+        lBase = lStart;
+        arrBuffer = new byte[1 << 16];
+    }
+
+    /**
+     * @return the current line, only available in regex mode
+     */
+    public String getLine() {
+        return sLine;
+    }
+
+    public boolean next() throws IOException {
+        if (frRegex != null) {
+            if ((sLine = frRegex.readLine()) == null) {
+                return false;
+            }
+            parseLine(sLine, this);
+            return true;
+        }
+
+        int c = readByte();
+        while (c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+            if (c == '\n') {
+                lLineNr++;
+            }
+            c = readByte();
+        }
+        if (c == -1) {
+            return false;
+        }
+        lLineNr++;
+        lRecordStart = lBase + iPos - 1;
+
+        iDateIdx = readField(c);
+        iCityIdx = readField(iLastByte);
+        iDicIdx = readField(iLastByte);
+        iRepetitionIdx = readField(iLastByte);
+
+        c = iLastByte;
+        while (c == ' ' || c == '\t' || c == '\r') {
+            c = readByte();
+        }
+        if (c != '\n' && c != -1) {
+            throw malformed();
+        }
+        return true;
+    }
+
+    /**
+     * @return the file offset at which the current record starts
+     */
+    public long getRecordStart() {
+        return lRecordStart;
+    }
+
+    /**
+     * Skips the rest of the current line, e.g. after starting at an arbitrary offset.
+     */
+    public void skipLine() throws IOException {
+        int c;
+        do {
+            c = readByte();
+        } while (c != '\n' && c != -1);
+    }
+
+    private int readField(int c) throws IOException {
+        while (c == ' ' || c == '\t') {
+            c = readByte();
+        }
+        if (c < '0' || c > '9') {
+            throw malformed();
+        }
+        int iValue = 0;
+        do {
+            int iDigit = c - '0';
+            if (iValue > (Integer.MAX_VALUE - iDigit) / 10) {
+                throw malformed();
+            }
+            iValue = iValue * 10 + iDigit;
+            c = readByte();
+        } while (c >= '0' && c <= '9');
+        iLastByte = c;
+        return iValue;
+    }
+
+    /**
+     * @return the next byte as 0-255, or -1 at the end of the input
+     */
+    private int readByte() throws IOException {
+        if (iPos == iLimit && !fill()) {
+            return -1;
+        }
+        return arrBuffer[iPos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        lBase += iLimit;
+        iPos = 0;
+        if (fIn != null) {
+            iLimit = fIn.read(arrBuffer, 0, arrBuffer.length);
+        } else {
+            if (mbbWindow == null || !mbbWindow.hasRemaining()) {
+                if (lMapped >= lEnd) {
+                    iLimit = 0;
+                    return false;
+                }
+                long lLength = Math.min(lEnd - lMapped, MAP_WINDOW);
+                mbbWindow = fChannel.map(FileChannel.MapMode.READ_ONLY, lMapped, lLength);
+                lMapped += lLength;
+            }
+            iLimit = Math.min(arrBuffer.length, mbbWindow.remaining());
+            mbbWindow.get(arrBuffer, 0, iLimit);
+        }
+        if (iLimit <= 0) {
+            iLimit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private IOException malformed() {
+        return new IOException("Malformed sora_vs record at line " + lLineNr
+                + ", expected 'day_id city_id word_id[TAB]frequency'");
+    }
+
+    public void close() throws IOException {
+        if (frRegex != null) {
+            frRegex.close();
+        } else if (fIn != null) {
+            fIn.close();
+        }
+    }
+
+    /**
+     * The original regex based parsing of one sora_vs line.
+     */
+    public static void parseLine(String sLine, SoraVsParser record) {
+        sLine = sLine.replaceAll(" \t", "\t");
+        String[] arrWords = sLine.split(" ");
+
+        record.iCityIdx = Integer.parseInt(arrWords[1]);
+
+        record.iDicIdx = Integer.parseInt(arrWords[2].split("\t")[0]);
+        if (arrWords[2].split("\t").length == 1) {
+            record.iRepetitionIdx = Integer.parseInt(arrWords[3].trim());
+        } else {
+            record.iRepetitionIdx = Integer.parseInt(arrWords[2].split("\t")[1].trim());
+        }
+        record.iDateIdx = Integer.parseInt(arrWords[0]);
+    }
+
+    /**
+     * Throughput comparison of the two parsing modes on a sora_vs file:
+     * SoraVsParser sora_vs_file [repetitions]
+     */
+    public static void main(String[] args) throws IOException {
+        File fSora = new File(args[0]);
+        int iRepetitions = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        double dMegabytes = fSora.length() / (1024.0 * 1024.0);
+
+        for (int r = 0; r < iRepetitions; r++) {
+            for (boolean bRegex : new boolean[]{true, false}) {
+                long lStart = System.nanoTime();
+                long lRecords = 0;
+                long lChecksum = 0;
+                SoraVsParser parser = new SoraVsParser(new FileInputStream(fSora), bRegex);
+                while (parser.next()) {
+                    lRecords++;
+                    lChecksum += parser.iDateIdx + 31L * parser.iCityIdx
+                            + 961L * parser.iDicIdx + 29791L * parser.iRepetitionIdx;
+                }
+                parser.close();
+                double dSeconds = (System.nanoTime() - lStart) / 1e9;
+                System.out.println((bRegex ? "regex" : "bytes") + "\t"
+                        + lRecords + " records\t"
+                        + String.format("%.3f s\t%.0f records/s\t%.1f MB/s",
+                        dSeconds, lRecords / dSeconds, dMegabytes / dSeconds)
+                        + "\tchecksum " + lChecksum);
+            }
+        }
+    }
+}